@@ -54,6 +54,7 @@ public class DeleteGitCacheDirectoryAction extends PlanActionSupport implements
                         log.info(getText("repository.git.messages.cache.cleaning", Arrays.asList(buildKey, cacheDirectoryFile.getAbsolutePath())));
                         try
                         {
+                            GitBatchCheckWorker.closeWorkers(cacheDirectoryFile);
                             FileUtils.forceDelete(cacheDirectoryFile);
                         }
                         catch (IOException e)
@@ -0,0 +1,346 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived <code>git cat-file --batch-check</code> process serving object and revision lookups for one repository
+ * directory over a pipe, so that native git operations don't have to spawn a git process (or open the repository with
+ * JGit) for each tiny question. Only cache directories, which many builds look up revisions in, get workers; lookups in
+ * workspaces go to JGit directly. Workers are pooled per git executable and directory, restarted when they die and
+ * stopped after being idle for atlassian.bamboo.git.batch.idle.timeout seconds. A worker that doesn't answer within the
+ * command timeout is killed, and the caller is expected to fall back to JGit.
+ */
+class GitBatchCheckWorker
+{
+    private static final Logger log = Logger.getLogger(GitBatchCheckWorker.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int IDLE_TIMEOUT_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.batch.idle.timeout", "GIT_BATCH_IDLE_TIMEOUT").getValue(60);
+
+    private static final String MISSING = " missing";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static final ConcurrentMap<String, GitBatchCheckWorker> workers = new ConcurrentHashMap<String, GitBatchCheckWorker>();
+
+    private static final ThreadFactory STDERR_THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("bamboo-git-batch-stderr-%d")
+            .setDaemon(true)
+            .build();
+
+    private static ScheduledExecutorService reaper;
+
+    private final File workingDirectory;
+    private final Process process;
+    private final OutputStream stdin;
+    private final BufferedReader stdout;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile boolean timedOut;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private GitBatchCheckWorker(@Nullable final String gitExecutable, @NotNull final File workingDirectory) throws IOException
+    {
+        this.workingDirectory = workingDirectory;
+        final ProcessBuilder processBuilder = new ProcessBuilder(Arrays.asList(StringUtils.defaultIfEmpty(gitExecutable, "git"), "cat-file", "--batch-check"));
+        processBuilder.directory(workingDirectory);
+        process = processBuilder.start();
+        stdin = process.getOutputStream();
+        stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        // warnings must not end up in the answers read from stdout
+        STDERR_THREAD_FACTORY.newThread(new StderrReader(process.getErrorStream(), workingDirectory)).start();
+        log.debug("Started git cat-file --batch-check in " + workingDirectory);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Resolves a revision (object id, ref name or any other revision expression understood by git) in the repository
+     * in workingDirectory.
+     *
+     * @param timeoutMillis time to wait for the answer, after which git is killed
+     * @return id of the object, null if the revision cannot be resolved or the object is not in the repository
+     * @throws IOException if git cannot be run, keeps failing or doesn't answer in time
+     */
+    @Nullable
+    static String getObjectId(@Nullable final String gitExecutable, @NotNull final File workingDirectory, @NotNull final String revision, final long timeoutMillis) throws IOException
+    {
+        if (StringUtils.isBlank(revision) || StringUtils.containsAny(revision, "\r\n"))
+        {
+            return null;
+        }
+        final File directory = workingDirectory.getCanonicalFile();
+        final String key = StringUtils.defaultString(gitExecutable) + "\n" + directory;
+        IOException lastException = null;
+        for (int attempt = 0; attempt < 2; attempt++)
+        {
+            final GitBatchCheckWorker worker = getWorker(key, gitExecutable, directory);
+            try
+            {
+                return worker.query(revision, timeoutMillis);
+            }
+            catch (IOException e)
+            {
+                workers.remove(key, worker);
+                worker.close();
+                if (worker.timedOut)
+                {
+                    // a fresh process would most likely hang as well
+                    throw new IOException("git cat-file --batch-check in " + workingDirectory + " did not answer within " + timeoutMillis + " ms", e);
+                }
+                // the process has died or is out of sync, replace it with a fresh one
+                log.debug("git cat-file --batch-check in " + workingDirectory + " failed, restarting", e);
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * @return true if a worker is serving the given directory
+     */
+    static boolean isRunning(@NotNull final File workingDirectory) throws IOException
+    {
+        final File directory = workingDirectory.getCanonicalFile();
+        for (GitBatchCheckWorker worker : workers.values())
+        {
+            if (worker.workingDirectory.equals(directory))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops workers serving the given directory, e.g. before it is deleted.
+     */
+    static void closeWorkers(@NotNull final File workingDirectory)
+    {
+        final File directory;
+        try
+        {
+            directory = workingDirectory.getCanonicalFile();
+        }
+        catch (IOException e)
+        {
+            return;
+        }
+        for (Map.Entry<String, GitBatchCheckWorker> entry : workers.entrySet())
+        {
+            if (entry.getValue().workingDirectory.equals(directory) && workers.remove(entry.getKey(), entry.getValue()))
+            {
+                entry.getValue().close();
+            }
+        }
+    }
+
+    /**
+     * Stops all workers and the reaper, see {@link GitPluginLifecycle}. Workers are started again on demand.
+     */
+    static void shutdown()
+    {
+        synchronized (GitBatchCheckWorker.class)
+        {
+            if (reaper != null)
+            {
+                reaper.shutdownNow();
+                reaper = null;
+            }
+        }
+        for (Map.Entry<String, GitBatchCheckWorker> entry : workers.entrySet())
+        {
+            if (workers.remove(entry.getKey(), entry.getValue()))
+            {
+                entry.getValue().close();
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static GitBatchCheckWorker getWorker(@NotNull final String key, @Nullable final String gitExecutable, @NotNull final File workingDirectory) throws IOException
+    {
+        GitBatchCheckWorker worker = workers.get(key);
+        if (worker != null && worker.isAlive())
+        {
+            return worker;
+        }
+        if (worker != null)
+        {
+            workers.remove(key, worker);
+            worker.close();
+        }
+
+        final GitBatchCheckWorker newWorker = new GitBatchCheckWorker(gitExecutable, workingDirectory);
+        worker = workers.putIfAbsent(key, newWorker);
+        if (worker != null)
+        {
+            newWorker.close();
+            return worker;
+        }
+        return newWorker;
+    }
+
+    /**
+     * Returns the thread which stops idle workers and kills the ones which don't answer in time, starting it if
+     * needed.
+     */
+    @NotNull
+    private static synchronized ScheduledExecutorService getReaper()
+    {
+        if (reaper == null)
+        {
+            reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("bamboo-git-batch-reaper")
+                    .setDaemon(true)
+                    .build());
+            final long period = Math.max(1, IDLE_TIMEOUT_SECONDS / 2);
+            reaper.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    closeIdleWorkers();
+                }
+            }, period, period, TimeUnit.SECONDS);
+        }
+        return reaper;
+    }
+
+    private static void closeIdleWorkers()
+    {
+        final long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS);
+        for (Map.Entry<String, GitBatchCheckWorker> entry : workers.entrySet())
+        {
+            final GitBatchCheckWorker worker = entry.getValue();
+            if ((worker.lastUsed < idleSince || !worker.isAlive()) && workers.remove(entry.getKey(), worker))
+            {
+                worker.close();
+            }
+        }
+    }
+
+    @Nullable
+    private synchronized String query(@NotNull final String revision, final long timeoutMillis) throws IOException
+    {
+        lastUsed = System.currentTimeMillis();
+        final ScheduledFuture<?> watchdog = getReaper().schedule(new Runnable()
+        {
+            public void run()
+            {
+                log.warn("git cat-file --batch-check in " + workingDirectory + " did not answer within " + timeoutMillis + " ms, killing it");
+                timedOut = true;
+                process.destroy();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        final String response;
+        try
+        {
+            stdin.write((revision + "\n").getBytes("UTF-8"));
+            stdin.flush();
+            response = stdout.readLine();
+        }
+        finally
+        {
+            watchdog.cancel(false);
+        }
+        if (timedOut)
+        {
+            throw new IOException("git cat-file --batch-check has been killed after " + timeoutMillis + " ms");
+        }
+        if (response == null)
+        {
+            throw new IOException("git cat-file --batch-check has exited unexpectedly");
+        }
+        if (response.endsWith(MISSING) || response.endsWith(" ambiguous"))
+        {
+            return null;
+        }
+        final String[] fields = StringUtils.split(response, ' ');
+        if (fields.length != 3 || !ObjectId.isId(fields[0]))
+        {
+            throw new IOException("Unexpected git cat-file --batch-check response: " + response);
+        }
+        return fields[0];
+    }
+
+    private boolean isAlive()
+    {
+        try
+        {
+            process.exitValue();
+            return false;
+        }
+        catch (IllegalThreadStateException e)
+        {
+            return true;
+        }
+    }
+
+    private void close()
+    {
+        IOUtils.closeQuietly(stdin);
+        IOUtils.closeQuietly(stdout);
+        process.destroy();
+        log.debug("Stopped git cat-file --batch-check in " + workingDirectory);
+    }
+
+    private static class StderrReader implements Runnable
+    {
+        private final InputStream stderr;
+        private final File workingDirectory;
+
+        StderrReader(@NotNull final InputStream stderr, @NotNull final File workingDirectory)
+        {
+            this.stderr = stderr;
+            this.workingDirectory = workingDirectory;
+        }
+
+        public void run()
+        {
+            try
+            {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(stderr, "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    log.debug("git cat-file --batch-check in " + workingDirectory + ": " + line);
+                }
+            }
+            catch (IOException e)
+            {
+                // the process has been stopped
+            }
+            finally
+            {
+                IOUtils.closeQuietly(stderr);
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.TransportBundleStream;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seeding of new caches and workspaces from pre-built <code>git bundle</code> files, so that a cold repository only
+ * fetches what has changed since the bundle was built instead of the entire history. Refs of the bundle are only
+ * written under refs/bundle/ for the catch-up fetch to negotiate with and are removed after it, so that stale branches
+ * of an old bundle never show up as local branches.
+ * <p/>
+ * Bundles are looked up in atlassian.bamboo.git.bundle.location, a directory or an http(s) URL, under a name derived
+ * from the repository URL and username. With atlassian.bamboo.git.bundle.refresh set to a number of hours and a
+ * directory as the location, full caches of this instance rewrite their bundles in the background once they are that
+ * old, e.g. on the server into a directory agents can read.
+ */
+class GitBundles
+{
+    private static final Logger log = Logger.getLogger(GitBundles.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String BUNDLE_LOCATION = new SystemProperty(false, "atlassian.bamboo.git.bundle.location", "GIT_BUNDLE_LOCATION").getValue("");
+    static final int BUNDLE_REFRESH_HOURS = new SystemProperty(false, "atlassian.bamboo.git.bundle.refresh", "GIT_BUNDLE_REFRESH").getValue(0);
+
+    static final String BUNDLE_EXTENSION = ".bundle";
+
+    static final String SEED_REFS_PREFIX = Constants.R_REFS + "bundle/";
+
+    private static final RefSpec ALL_REFS = new RefSpec("+" + Constants.R_REFS + "*:" + SEED_REFS_PREFIX + "*");
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static final Set<File> refreshPending = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    // caches whose bundles are being written outside of their locks
+    private static final Set<File> bundlesInProgress = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private static ExecutorService executor;
+
+    private GitBundles()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    static boolean isSeedingEnabled()
+    {
+        return StringUtils.isNotBlank(BUNDLE_LOCATION);
+    }
+
+    @NotNull
+    static String getBundleName(@NotNull final GitRepository.GitRepositoryAccessData accessData)
+    {
+        return GitCacheDirectory.calculateAggregateSha(accessData.repositoryUrl, accessData.username) + BUNDLE_EXTENSION;
+    }
+
+    /**
+     * Fetches all refs of the bundle for accessData found in location into localRepository, under
+     * {@link #SEED_REFS_PREFIX}.
+     *
+     * @return false if there's no such bundle
+     */
+    static boolean seed(@NotNull final FileRepository localRepository, @NotNull final GitRepository.GitRepositoryAccessData accessData, @NotNull final String location) throws IOException
+    {
+        final String bundleName = getBundleName(accessData);
+        final InputStream bundle = openBundle(location, bundleName, (int) TimeUnit.MINUTES.toMillis(Math.max(1, accessData.commandTimeout)));
+        if (bundle == null)
+        {
+            return false;
+        }
+
+        final long start = System.currentTimeMillis();
+        final Transport transport = new TransportBundleStream(localRepository, new URIish().setPath(bundleName), bundle);
+        try
+        {
+            transport.fetch(NullProgressMonitor.INSTANCE, Collections.singletonList(ALL_REFS));
+        }
+        finally
+        {
+            transport.close();
+            IOUtils.closeQuietly(bundle);
+        }
+        log.info("Seeded " + localRepository.getDirectory() + " from bundle " + bundleName + " in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Removes refs written by {@link #seed}, once the objects they point to are no longer needed to negotiate a fetch.
+     */
+    static void removeSeedRefs(@NotNull final FileRepository localRepository) throws IOException
+    {
+        for (Ref ref : localRepository.getRefDatabase().getRefs(SEED_REFS_PREFIX).values())
+        {
+            final RefUpdate refUpdate = localRepository.updateRef(ref.getName());
+            refUpdate.setForceUpdate(true);
+            final RefUpdate.Result result = refUpdate.delete();
+            if (result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NO_CHANGE)
+            {
+                throw new IOException("Cannot delete " + ref.getName() + ": " + result);
+            }
+        }
+    }
+
+    /**
+     * Schedules rewriting of the bundle of a full cacheDirectory if bundles are refreshed by this instance and its
+     * bundle is older than the configured interval.
+     */
+    static void refreshIfDue(@NotNull final File cacheDirectory, @NotNull final GitRepository.GitRepositoryAccessData accessData, final boolean useShallow)
+    {
+        if (BUNDLE_REFRESH_HOURS <= 0 || !isSeedingEnabled() || isUrl(BUNDLE_LOCATION) || useShallow)
+        {
+            return;
+        }
+        final File bundleFile = new File(BUNDLE_LOCATION, getBundleName(accessData));
+        if (System.currentTimeMillis() - bundleFile.lastModified() < TimeUnit.HOURS.toMillis(BUNDLE_REFRESH_HOURS)
+            || !refreshPending.add(bundleFile))
+        {
+            return;
+        }
+        getExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    writeBundle(cacheDirectory, bundleFile);
+                }
+                catch (Exception e)
+                {
+                    log.warn("Cannot write bundle " + bundleFile + " of git cache " + cacheDirectory, e);
+                }
+                finally
+                {
+                    refreshPending.remove(bundleFile);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes all branches and tags of cacheDirectory to bundleFile. Refs are read under the shared lock of the cache,
+     * the bundle is written after it is released; objects are only added to the cache meanwhile, as maintenance leaves
+     * a cache alone while its bundle is being written. The bundle is replaced atomically where the file system allows,
+     * so that readers never see a partial one.
+     *
+     * @return false if the cache doesn't exist, can't be bundled (is shallow or a partial clone) or is being bundled
+     * already
+     */
+    static boolean writeBundle(@NotNull final File cacheDirectory, @NotNull final File bundleFile) throws Exception
+    {
+        final File gitDirectory = new File(cacheDirectory, Constants.DOT_GIT);
+        final Map<String, ObjectId> refs = GitCacheDirectory.getCacheReadLock(cacheDirectory).withLock(new Callable<Map<String, ObjectId>>()
+        {
+            public Map<String, ObjectId> call() throws Exception
+            {
+                if (!gitDirectory.isDirectory() || new File(gitDirectory, "shallow").exists() || GitPartialClone.isPartialClone(gitDirectory))
+                {
+                    return null;
+                }
+
+                final Map<String, ObjectId> refs = new LinkedHashMap<String, ObjectId>();
+                final FileRepository repository = new FileRepository(gitDirectory);
+                try
+                {
+                    for (Ref ref : repository.getAllRefs().values())
+                    {
+                        final String name = ref.getName();
+                        if ((name.startsWith(Constants.R_HEADS) || name.startsWith(Constants.R_TAGS)) && ref.getObjectId() != null)
+                        {
+                            refs.put(name, ref.getObjectId().copy());
+                        }
+                    }
+                }
+                finally
+                {
+                    repository.close();
+                }
+                // still under the lock, so that maintenance started after it is released sees the bundle being written
+                return refs.isEmpty() || !bundlesInProgress.add(cacheDirectory) ? null : refs;
+            }
+        });
+        if (refs == null)
+        {
+            return false;
+        }
+
+        final long start = System.currentTimeMillis();
+        final FileRepository repository = new FileRepository(gitDirectory);
+        final File tmpBundleFile = new File(bundleFile.getPath() + ".tmp");
+        try
+        {
+            final BundleWriter bundleWriter = new BundleWriter(repository);
+            for (Map.Entry<String, ObjectId> ref : refs.entrySet())
+            {
+                bundleWriter.include(ref.getKey(), ref.getValue());
+            }
+
+            FileUtils.forceMkdir(bundleFile.getParentFile());
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpBundleFile));
+            try
+            {
+                bundleWriter.writeBundle(NullProgressMonitor.INSTANCE, out);
+            }
+            finally
+            {
+                out.close();
+            }
+            if (!tmpBundleFile.renameTo(bundleFile))
+            {
+                FileUtils.deleteQuietly(bundleFile);
+                if (!tmpBundleFile.renameTo(bundleFile))
+                {
+                    throw new IOException("Cannot rename " + tmpBundleFile + " to " + bundleFile);
+                }
+            }
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(tmpBundleFile);
+            repository.close();
+            bundlesInProgress.remove(cacheDirectory);
+        }
+        log.info("Wrote bundle " + bundleFile + " (" + bundleFile.length() + " bytes) of git cache " + cacheDirectory
+                 + " in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * @return true while a bundle of cacheDirectory is being written, see {@link GitCacheMaintenance}
+     */
+    static boolean isBundleInProgress(@NotNull final File cacheDirectory)
+    {
+        return bundlesInProgress.contains(cacheDirectory);
+    }
+
+    /**
+     * Stops the bundle writer thread, see {@link GitPluginLifecycle}. It is started again on demand.
+     */
+    static synchronized void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            executor = null;
+        }
+        refreshPending.clear();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("bamboo-git-bundle-writer")
+                    .setDaemon(true)
+                    .build());
+        }
+        return executor;
+    }
+
+    @Nullable
+    private static InputStream openBundle(@NotNull final String location, @NotNull final String bundleName, final int timeoutMillis) throws IOException
+    {
+        if (isUrl(location))
+        {
+            try
+            {
+                final URLConnection connection = new URL(StringUtils.removeEnd(location, "/") + "/" + bundleName).openConnection();
+                connection.setConnectTimeout(timeoutMillis);
+                connection.setReadTimeout(timeoutMillis);
+                return new BufferedInputStream(connection.getInputStream());
+            }
+            catch (FileNotFoundException e)
+            {
+                return null;
+            }
+        }
+        final File bundleFile = new File(location, bundleName);
+        return bundleFile.isFile() ? new BufferedInputStream(new FileInputStream(bundleFile)) : null;
+    }
+
+    private static boolean isUrl(@NotNull final String location)
+    {
+        return location.startsWith("http://") || location.startsWith("https://");
+    }
+}
@@ -1,16 +1,29 @@
 package com.atlassian.bamboo.plugins.git;
 
-import com.atlassian.util.concurrent.Function;
+import com.atlassian.bamboo.utils.SystemProperty;
 import com.atlassian.util.concurrent.ManagedLock;
 import com.atlassian.util.concurrent.ManagedLocks;
+import com.google.common.collect.MapMaker;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.CharEncoding;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Class used to handle git cache directory operations.
@@ -19,8 +32,19 @@ public class GitCacheDirectory
 {
 
     static final String GIT_REPOSITORY_CACHE_DIRECTORY = "_git-repositories-cache";
+    static final String SHARED_OBJECT_STORE_SUFFIX = "-objects";
 
-    static final Function<File, ManagedLock> cacheLockFactory = ManagedLocks.weakManagedLockFactory();
+    static final boolean SHARED_SHALLOW_OBJECTS = new SystemProperty(false, "atlassian.bamboo.git.cache.shallow.shared.objects", "GIT_CACHE_SHALLOW_SHARED_OBJECTS").getValue(false);
+    static final int TRACKED_BRANCH_TTL_HOURS = new SystemProperty(false, "atlassian.bamboo.git.cache.tracked.branch.ttl", "GIT_CACHE_TRACKED_BRANCH_TTL").getValue(24);
+
+    // weakly referenced, so that locks of caches nobody uses any more are collected; see CacheReadWriteLock
+    private static final ConcurrentMap<File, CacheReadWriteLock> cacheLocks = new MapMaker().weakValues().makeMap();
+
+    // branches of the repository which builds have recently been using each cache directory for, with the time of last use
+    private static final ConcurrentMap<File, Map<String, Long>> trackedBranches = new ConcurrentHashMap<File, Map<String, Long>>();
+
+    // number of times each cache directory has been removed to be fetched again from scratch
+    private static final ConcurrentMap<File, AtomicLong> recoveryCounts = new ConcurrentHashMap<File, AtomicLong>();
 
     private static final Logger log = Logger.getLogger(GitCacheDirectory.class);
 
@@ -35,8 +59,30 @@ public class GitCacheDirectory
                 calculateAggregateSha(repositoryData.repositoryUrl, repositoryData.username, repositoryData.branch) :
                 calculateAggregateSha(repositoryData.repositoryUrl, repositoryData.username);
 
-        File cacheDirectory = new File(workingDirectory, GIT_REPOSITORY_CACHE_DIRECTORY);
-        return new File(cacheDirectory, repositorySha);
+        File cacheDirectory = new File(new File(workingDirectory, GIT_REPOSITORY_CACHE_DIRECTORY), repositorySha);
+        GitCacheManager.recordAccess(cacheDirectory);
+        final File objectStore = getSharedObjectStore(cacheDirectory, repositoryData);
+        if (objectStore != null)
+        {
+            // the store must not look less recently used than any cache relying on it
+            GitCacheManager.recordAccess(objectStore);
+        }
+        return cacheDirectory;
+    }
+
+    /**
+     * @return directory keeping objects of the shallow caches of all branches of the repository, null if the cache
+     * for repositoryData doesn't use one
+     */
+    @Nullable
+    static File getSharedObjectStore(@NotNull final File cacheDirectory, @NotNull final GitRepository.GitRepositoryAccessData repositoryData)
+    {
+        if (!SHARED_SHALLOW_OBJECTS || !repositoryData.useShallowClones)
+        {
+            return null;
+        }
+        final String repositorySha = calculateAggregateSha(repositoryData.repositoryUrl, repositoryData.username);
+        return new File(cacheDirectory.getParentFile(), repositorySha + SHARED_OBJECT_STORE_SUFFIX);
     }
     
     static String calculateAggregateSha(String... params)
@@ -61,8 +107,190 @@ public class GitCacheDirectory
         return DigestUtils.shaHex(baos.toByteArray());
     }
 
+    /**
+     * @return true if directory is a cache directory (not a shared object store)
+     */
+    static boolean isCacheDirectory(@NotNull File directory)
+    {
+        final File parent = directory.getAbsoluteFile().getParentFile();
+        return parent != null && GIT_REPOSITORY_CACHE_DIRECTORY.equals(parent.getName()) && !directory.getName().endsWith(SHARED_OBJECT_STORE_SUFFIX);
+    }
+
+    /**
+     * Exclusive lock, to be held while the cache is being fetched into, repaired or removed.
+     */
     public static ManagedLock getCacheLock(@NotNull File cache)
     {
-        return cacheLockFactory.get(cache);
+        return getCacheLocks(cache).managedLocks.write();
+    }
+
+    /**
+     * Shared lock, to be held while the cache is only read: checkouts through alternates, walking commits.
+     */
+    public static ManagedLock getCacheReadLock(@NotNull File cache)
+    {
+        return getCacheLocks(cache).managedLocks.read();
+    }
+
+    /**
+     * Registers branch as one of the branches fetched into the cache, so that batched fetches keep it up to date for
+     * the next {@link #TRACKED_BRANCH_TTL_HOURS} hours.
+     */
+    static void trackBranch(@NotNull File cache, @Nullable String branch)
+    {
+        trackBranch(cache, branch, System.currentTimeMillis());
+    }
+
+    static void trackBranch(@NotNull File cache, @Nullable String branch, long time)
+    {
+        Map<String, Long> branches = trackedBranches.get(cache);
+        if (branches == null)
+        {
+            // may hold null, the default branch
+            final Map<String, Long> newBranches = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+            branches = trackedBranches.putIfAbsent(cache, newBranches);
+            if (branches == null)
+            {
+                branches = newBranches;
+            }
+        }
+        branches.put(branch, time);
+    }
+
+    /**
+     * @return branches used with the cache within the last {@link #TRACKED_BRANCH_TTL_HOURS} hours; the ones used
+     * before are forgotten
+     */
+    @NotNull
+    static Set<String> getTrackedBranches(@NotNull File cache)
+    {
+        final Map<String, Long> branches = trackedBranches.get(cache);
+        if (branches == null)
+        {
+            return Collections.emptySet();
+        }
+        final long usedSince = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(TRACKED_BRANCH_TTL_HOURS);
+        final Set<String> result = new LinkedHashSet<String>();
+        synchronized (branches)
+        {
+            for (Iterator<Map.Entry<String, Long>> iterator = branches.entrySet().iterator(); iterator.hasNext(); )
+            {
+                final Map.Entry<String, Long> branch = iterator.next();
+                if (branch.getValue() < usedSince)
+                {
+                    iterator.remove();
+                }
+                else
+                {
+                    result.add(branch.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of times the cache has been removed to be fetched again from scratch; callers which fail on the
+     * same broken cache compare it under the exclusive lock, so that only the first of them removes it
+     */
+    static long getRecoveryCount(@NotNull File cache)
+    {
+        final AtomicLong recoveryCount = recoveryCounts.get(cache);
+        return recoveryCount != null ? recoveryCount.get() : 0;
+    }
+
+    /**
+     * To be called under the exclusive lock once the cache has been removed to be fetched again from scratch.
+     */
+    static void recordRecovery(@NotNull File cache)
+    {
+        AtomicLong recoveryCount = recoveryCounts.get(cache);
+        if (recoveryCount == null)
+        {
+            final AtomicLong newRecoveryCount = new AtomicLong();
+            recoveryCount = recoveryCounts.putIfAbsent(cache, newRecoveryCount);
+            if (recoveryCount == null)
+            {
+                recoveryCount = newRecoveryCount;
+            }
+        }
+        recoveryCount.incrementAndGet();
+    }
+
+    /**
+     * Forgets everything kept in memory about the cache, to be called under its exclusive lock once it has been removed
+     * for good. Its lock is only dropped if nobody else is waiting for it, they have to be serialized with whoever
+     * creates the cache again.
+     */
+    static void forgetCache(@NotNull File cache)
+    {
+        trackedBranches.remove(cache);
+        final CacheReadWriteLock locks = cacheLocks.get(cache);
+        if (locks != null && locks.isWriteLockedByCurrentThread() && locks.getReadLockCount() == 0 && !locks.hasQueuedThreads())
+        {
+            cacheLocks.remove(cache, locks);
+        }
+    }
+
+    private static CacheReadWriteLock getCacheLocks(@NotNull File cache)
+    {
+        CacheReadWriteLock locks = cacheLocks.get(cache);
+        if (locks == null)
+        {
+            final CacheReadWriteLock newLocks = new CacheReadWriteLock();
+            locks = cacheLocks.putIfAbsent(cache, newLocks);
+            if (locks == null)
+            {
+                locks = newLocks;
+            }
+        }
+        return locks;
+    }
+
+    /**
+     * Read-write lock whose read and write locks reference it, so that the weakly held lock can't be collected (and
+     * recreated) while a reader or writer holds one of them through its managed pair.
+     */
+    private static class CacheReadWriteLock extends ReentrantReadWriteLock
+    {
+        private final ReadLock readLock = new CacheReadLock(this);
+        private final WriteLock writeLock = new CacheWriteLock(this);
+        private final ManagedLock.ReadWrite managedLocks = ManagedLocks.manageReadWrite(this);
+
+        @Override
+        public ReadLock readLock()
+        {
+            return readLock;
+        }
+
+        @Override
+        public WriteLock writeLock()
+        {
+            return writeLock;
+        }
+    }
+
+    private static class CacheReadLock extends ReentrantReadWriteLock.ReadLock
+    {
+        @SuppressWarnings("UnusedDeclaration")
+        private final CacheReadWriteLock owner;
+
+        CacheReadLock(@NotNull final CacheReadWriteLock owner)
+        {
+            super(owner);
+            this.owner = owner;
+        }
+    }
+
+    private static class CacheWriteLock extends ReentrantReadWriteLock.WriteLock
+    {
+        @SuppressWarnings("UnusedDeclaration")
+        private final CacheReadWriteLock owner;
+
+        CacheWriteLock(@NotNull final CacheReadWriteLock owner)
+        {
+            super(owner);
+            this.owner = owner;
+        }
     }
 }
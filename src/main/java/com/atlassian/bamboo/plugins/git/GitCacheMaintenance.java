@@ -0,0 +1,265 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Background pack maintenance of git cache directories. Incremental fetches leave a cache with more and more small
+ * packs and loose objects; once every atlassian.bamboo.git.cache.maintenance.interval hours a cache that is not
+ * compact any more is repacked and pruned under its exclusive lock, one cache at a time, unless its bundle is being
+ * written (see {@link GitBundles}).
+ */
+class GitCacheMaintenance
+{
+    private static final Logger log = Logger.getLogger(GitCacheMaintenance.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int MAINTENANCE_INTERVAL_HOURS = new SystemProperty(false, "atlassian.bamboo.git.cache.maintenance.interval", "GIT_CACHE_MAINTENANCE_INTERVAL").getValue(24);
+
+    static final String MAINTENANCE_MARKER = "bamboo-maintenance";
+
+    private static final Pattern LOOSE_OBJECT_DIRECTORY = Pattern.compile("[0-9a-f]{2}");
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static final Set<File> maintenancePending = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private static ExecutorService executor;
+
+    static class PackStatistics
+    {
+        final int packs;
+        final int looseObjects;
+
+        PackStatistics(final int packs, final int looseObjects)
+        {
+            this.packs = packs;
+            this.looseObjects = looseObjects;
+        }
+
+        boolean isCompact()
+        {
+            return packs <= 1 && looseObjects == 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return packs + " packs, " + looseObjects + " loose objects";
+        }
+    }
+
+    private GitCacheMaintenance()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Schedules maintenance of cacheDirectory if it hasn't been maintained for the configured interval and is no
+     * longer compact.
+     */
+    static void maintainIfDue(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory)
+    {
+        scheduleIfDue(cacheDirectory, new File(cacheDirectory, Constants.DOT_GIT), new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                return maintain(helper, cacheDirectory);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #maintainIfDue(GitOperationHelper, File)}, for a {@link GitSharedObjectStore}.
+     */
+    static void maintainObjectStoreIfDue(@NotNull final GitOperationHelper helper, @NotNull final File objectStore)
+    {
+        scheduleIfDue(objectStore, objectStore, new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                return maintainObjectStore(helper, objectStore);
+            }
+        });
+    }
+
+    /**
+     * Repacks and prunes cacheDirectory under its exclusive lock.
+     *
+     * @return false if the cache doesn't exist or helper can't maintain repositories
+     */
+    static boolean maintain(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory) throws Exception
+    {
+        return maintain(cacheDirectory, new File(cacheDirectory, Constants.DOT_GIT), new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                return helper.gcCacheRepository(cacheDirectory);
+            }
+        });
+    }
+
+    /**
+     * Repacks objectStore into a single pack under its exclusive lock. Unlike caches, stores have no refs of their own
+     * and are never pruned.
+     */
+    static boolean maintainObjectStore(@NotNull final GitOperationHelper helper, @NotNull final File objectStore) throws Exception
+    {
+        return maintain(objectStore, objectStore, new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                return helper.repackObjectStore(objectStore);
+            }
+        });
+    }
+
+    @NotNull
+    static PackStatistics getPackStatistics(@NotNull final File gitDirectory)
+    {
+        final File objectsDirectory = new File(gitDirectory, "objects");
+        final String[] packs = new File(objectsDirectory, "pack").list();
+        int packCount = 0;
+        if (packs != null)
+        {
+            for (String pack : packs)
+            {
+                if (pack.endsWith(".pack"))
+                {
+                    packCount++;
+                }
+            }
+        }
+
+        int looseObjectCount = 0;
+        final File[] looseObjectDirectories = objectsDirectory.listFiles();
+        if (looseObjectDirectories != null)
+        {
+            for (File looseObjectDirectory : looseObjectDirectories)
+            {
+                final String[] looseObjects = looseObjectDirectory.list();
+                if (looseObjects != null && LOOSE_OBJECT_DIRECTORY.matcher(looseObjectDirectory.getName()).matches())
+                {
+                    looseObjectCount += looseObjects.length;
+                }
+            }
+        }
+        return new PackStatistics(packCount, looseObjectCount);
+    }
+
+    /**
+     * Stops the maintenance thread, see {@link GitPluginLifecycle}. It is started again on demand.
+     */
+    static synchronized void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            executor = null;
+        }
+        maintenancePending.clear();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("bamboo-git-cache-maintenance")
+                    .setDaemon(true)
+                    .build());
+        }
+        return executor;
+    }
+
+    private static void scheduleIfDue(@NotNull final File directory, @NotNull final File gitDirectory, @NotNull final Callable<Boolean> maintenance)
+    {
+        if (MAINTENANCE_INTERVAL_HOURS <= 0 || !isDue(gitDirectory) || !maintenancePending.add(directory))
+        {
+            return;
+        }
+        getExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    maintenance.call();
+                }
+                catch (Exception e)
+                {
+                    log.warn("Maintenance of git cache " + directory + " failed", e);
+                }
+                finally
+                {
+                    maintenancePending.remove(directory);
+                }
+            }
+        });
+    }
+
+    private static boolean maintain(@NotNull final File directory, @NotNull final File gitDirectory, @NotNull final Callable<Boolean> maintenance) throws Exception
+    {
+        return GitCacheDirectory.getCacheLock(directory).withLock(new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                if (!new File(gitDirectory, "objects").isDirectory())
+                {
+                    return false; // removed in the meantime
+                }
+                if (GitBundles.isBundleInProgress(directory))
+                {
+                    // pruning could remove objects the bundle still has to read; tried again on a later fetch
+                    log.debug("Git cache " + directory + " is being bundled, maintenance postponed");
+                    return false;
+                }
+
+                final PackStatistics before = getPackStatistics(gitDirectory);
+                final long start = System.currentTimeMillis();
+                final boolean maintained = maintenance.call();
+                // also when unsupported, not to try again on every fetch
+                FileUtils.touch(new File(gitDirectory, MAINTENANCE_MARKER));
+                if (maintained)
+                {
+                    log.info("Maintained git cache " + directory + " in " + (System.currentTimeMillis() - start) + " ms: "
+                            + before + " before, " + getPackStatistics(gitDirectory) + " after");
+                }
+                else
+                {
+                    log.debug("Git cache " + directory + " (" + before + ") can't be maintained without native git");
+                }
+                return maintained;
+            }
+        });
+    }
+
+    private static boolean isDue(@NotNull final File gitDirectory)
+    {
+        final File marker = new File(gitDirectory, MAINTENANCE_MARKER);
+        if (System.currentTimeMillis() - marker.lastModified() < TimeUnit.HOURS.toMillis(MAINTENANCE_INTERVAL_HOURS))
+        {
+            return false;
+        }
+        return gitDirectory.isDirectory() && !getPackStatistics(gitDirectory).isCompact();
+    }
+}
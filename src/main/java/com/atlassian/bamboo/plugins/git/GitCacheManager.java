@@ -0,0 +1,450 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the total size of git cache directories within atlassian.bamboo.git.cache.max.size megabytes by removing the
+ * least recently used caches. Last access times are kept in memory and, to survive restarts, as modification times of
+ * the cache directories. Sizes are measured lazily; packs fetched afterwards are added to the estimate, which is only
+ * measured again once older than atlassian.bamboo.git.cache.size.refresh minutes.
+ * <p/>
+ * A cache is only removed under its exclusive lock, and only if it hasn't been used for
+ * atlassian.bamboo.git.cache.eviction.min.idle minutes, so that it can't disappear under a running build. Directories
+ * other caches borrow objects from through <code>objects/info/alternates</code> (see {@link GitSharedObjectStore}) are
+ * only removed once none of those caches is left. Kept checkouts of a cache (<code>&lt;cache&gt;-checkouts</code>, see
+ * {@link GitWorkspacePopulator}) are removed together with it, before it.
+ */
+class GitCacheManager
+{
+    private static final Logger log = Logger.getLogger(GitCacheManager.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int MAX_CACHE_SIZE_MB = new SystemProperty(false, "atlassian.bamboo.git.cache.max.size", "GIT_CACHE_MAX_SIZE").getValue(0);
+    static final int EVICTION_MIN_IDLE_MINUTES = new SystemProperty(false, "atlassian.bamboo.git.cache.eviction.min.idle", "GIT_CACHE_EVICTION_MIN_IDLE").getValue(60);
+    static final int SIZE_REFRESH_MINUTES = new SystemProperty(false, "atlassian.bamboo.git.cache.size.refresh", "GIT_CACHE_SIZE_REFRESH").getValue(60);
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static final ConcurrentMap<File, Long> lastAccessTimes = new ConcurrentHashMap<File, Long>();
+    private static final ConcurrentMap<File, SizeEstimate> sizes = new ConcurrentHashMap<File, SizeEstimate>();
+
+    private static final AtomicBoolean evictionPending = new AtomicBoolean();
+
+    private static ExecutorService executor;
+
+    private static class CacheEntry
+    {
+        final File cache;
+        @Nullable final File checkouts;
+        final long size;
+        final long lastAccess;
+
+        CacheEntry(@NotNull final File cache, @Nullable final File checkouts, final long size, final long lastAccess)
+        {
+            this.cache = cache;
+            this.checkouts = checkouts;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static class SizeEstimate
+    {
+        final long size;
+        final long measured;
+        final Set<String> packs;
+
+        SizeEstimate(final long size, final long measured, @NotNull final Set<String> packs)
+        {
+            this.size = size;
+            this.measured = measured;
+            this.packs = packs;
+        }
+    }
+
+    private GitCacheManager()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    static void recordAccess(@NotNull final File cache)
+    {
+        final long now = System.currentTimeMillis();
+        lastAccessTimes.put(cache, now);
+        if (cache.isDirectory() && !cache.setLastModified(now))
+        {
+            log.debug("Cannot set modification time of " + cache);
+        }
+    }
+
+    /**
+     * To be called under the exclusive lock after cache has been fetched into. Evicts old caches in the background if
+     * the budget is exceeded.
+     */
+    static void recordFetch(@NotNull final File cache)
+    {
+        final SizeEstimate estimate = sizes.get(cache);
+        if (estimate != null)
+        {
+            if (System.currentTimeMillis() - estimate.measured >= TimeUnit.MINUTES.toMillis(SIZE_REFRESH_MINUTES))
+            {
+                // loose objects and repacks aren't accounted for, measured again by the next eviction pass
+                sizes.remove(cache);
+            }
+            else
+            {
+                sizes.replace(cache, estimate, addFetchedPacks(cache, estimate));
+            }
+        }
+        if (MAX_CACHE_SIZE_MB > 0 && evictionPending.compareAndSet(false, true))
+        {
+            final File cacheRoot = cache.getParentFile();
+            getExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    evictionPending.set(false);
+                    try
+                    {
+                        evict(cacheRoot, MAX_CACHE_SIZE_MB * FileUtils.ONE_MB, TimeUnit.MINUTES.toMillis(EVICTION_MIN_IDLE_MINUTES));
+                    }
+                    catch (RuntimeException e)
+                    {
+                        log.warn("Git cache eviction in " + cacheRoot + " failed", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes least recently used caches from cacheRoot until their total size fits in maxBytes. Caches used less than
+     * minIdleMillis ago are never removed, even if that means exceeding the budget.
+     *
+     * @return number of removed caches
+     */
+    static int evict(@NotNull final File cacheRoot, final long maxBytes, final long minIdleMillis)
+    {
+        final File[] caches = cacheRoot.listFiles((FileFilter) DirectoryFileFilter.DIRECTORY);
+        if (caches == null)
+        {
+            return 0;
+        }
+
+        long totalSize = 0;
+        final Map<File, Long> measuredSizes = new LinkedHashMap<File, Long>();
+        for (File cache : caches)
+        {
+            final Long size = getSize(cache);
+            if (size != null)
+            {
+                totalSize += size;
+                measuredSizes.put(cache, size);
+            }
+        }
+
+        final List<CacheEntry> entries = new ArrayList<CacheEntry>(caches.length);
+        final Map<File, Set<File>> alternatesByCache = new HashMap<File, Set<File>>();
+        for (Map.Entry<File, Long> measuredSize : measuredSizes.entrySet())
+        {
+            final File cache = measuredSize.getKey();
+            final File owner = getCheckoutsOwner(cache);
+            if (owner != null && measuredSizes.containsKey(owner))
+            {
+                continue; // removed together with its cache
+            }
+            final File checkouts = new File(cache.getPath() + GitWorkspacePopulator.CHECKOUTS_SUFFIX);
+            final Long checkoutsSize = measuredSizes.get(checkouts);
+            if (checkoutsSize != null)
+            {
+                entries.add(new CacheEntry(cache, checkouts, measuredSize.getValue() + checkoutsSize,
+                                           Math.max(getLastAccess(cache), getLastAccess(checkouts))));
+            }
+            else
+            {
+                entries.add(new CacheEntry(cache, null, measuredSize.getValue(), getLastAccess(cache)));
+            }
+            alternatesByCache.put(cache, getAlternateDirectories(cache));
+        }
+        if (totalSize <= maxBytes)
+        {
+            return 0;
+        }
+
+        Collections.sort(entries, new Comparator<CacheEntry>()
+        {
+            public int compare(CacheEntry o1, CacheEntry o2)
+            {
+                return o1.lastAccess < o2.lastAccess ? -1 : (o1.lastAccess == o2.lastAccess ? 0 : 1);
+            }
+        });
+
+        int evicted = 0;
+        boolean removedAny = true;
+        while (totalSize > maxBytes && removedAny)
+        {
+            // a store used by a removed cache may have become removable, so start over after each removal
+            removedAny = false;
+            for (Iterator<CacheEntry> iterator = entries.iterator(); iterator.hasNext() && !removedAny; )
+            {
+                final CacheEntry entry = iterator.next();
+                if (!isIdle(entry.lastAccess, minIdleMillis))
+                {
+                    break;
+                }
+                if (isUsedAsAlternate(entry.cache, alternatesByCache))
+                {
+                    continue;
+                }
+                iterator.remove();
+                if (remove(entry, minIdleMillis))
+                {
+                    log.info("Removed git cache " + entry.cache + " (" + FileUtils.byteCountToDisplaySize(entry.size) + "), last used " + new Date(entry.lastAccess));
+                    alternatesByCache.remove(entry.cache);
+                    totalSize -= entry.size;
+                    evicted++;
+                    removedAny = true;
+                }
+            }
+        }
+        if (totalSize > maxBytes)
+        {
+            log.info("Git caches in " + cacheRoot + " take " + FileUtils.byteCountToDisplaySize(totalSize) + ", over the limit of " + FileUtils.byteCountToDisplaySize(maxBytes) + ", but the remaining ones are in use");
+        }
+        return evicted;
+    }
+
+    /**
+     * Stops the eviction thread, see {@link GitPluginLifecycle}. It is started again on demand.
+     */
+    static synchronized void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            executor = null;
+        }
+        evictionPending.set(false);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("bamboo-git-cache-eviction")
+                    .setDaemon(true)
+                    .build());
+        }
+        return executor;
+    }
+
+    private static long getLastAccess(@NotNull final File cache)
+    {
+        final Long lastAccess = lastAccessTimes.get(cache);
+        return lastAccess != null ? Math.max(lastAccess, cache.lastModified()) : cache.lastModified();
+    }
+
+    /**
+     * @return directories whose objects cache borrows, e.g. shared object stores
+     */
+    @NotNull
+    private static Set<File> getAlternateDirectories(@NotNull final File cache)
+    {
+        final Set<File> directories = new HashSet<File>();
+        final File alternatesFile = new File(cache, Constants.DOT_GIT + "/objects/info/alternates");
+        if (!alternatesFile.isFile())
+        {
+            return directories;
+        }
+        try
+        {
+            //noinspection unchecked
+            for (String alternate : (List<String>) FileUtils.readLines(alternatesFile))
+            {
+                if (StringUtils.isNotBlank(alternate))
+                {
+                    // alternates point to object directories, caches are their parents
+                    directories.add(new File(alternate.trim()).getParentFile());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot read " + alternatesFile, e);
+        }
+        return directories;
+    }
+
+    private static boolean isUsedAsAlternate(@NotNull final File directory, @NotNull final Map<File, Set<File>> alternatesByCache)
+    {
+        for (Map.Entry<File, Set<File>> entry : alternatesByCache.entrySet())
+        {
+            if (!entry.getKey().equals(directory) && entry.getValue().contains(directory.getAbsoluteFile()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isIdle(final long lastAccess, final long minIdleMillis)
+    {
+        return System.currentTimeMillis() - lastAccess >= minIdleMillis;
+    }
+
+    @Nullable
+    private static Long getSize(@NotNull final File cache)
+    {
+        final SizeEstimate estimate = sizes.get(cache);
+        if (estimate != null)
+        {
+            return estimate.size;
+        }
+        try
+        {
+            // measured under the shared lock, so that no fetch changes the directory in the meantime
+            final SizeEstimate newEstimate = GitCacheDirectory.getCacheReadLock(cache).withLock(new Callable<SizeEstimate>()
+            {
+                public SizeEstimate call() throws Exception
+                {
+                    if (!cache.isDirectory())
+                    {
+                        return null;
+                    }
+                    final Set<String> packs = new HashSet<String>();
+                    for (File pack : listPacks(cache))
+                    {
+                        packs.add(pack.getName());
+                    }
+                    return new SizeEstimate(FileUtils.sizeOfDirectory(cache), System.currentTimeMillis(), packs);
+                }
+            });
+            if (newEstimate == null)
+            {
+                return null;
+            }
+            sizes.put(cache, newEstimate);
+            return newEstimate.size;
+        }
+        catch (Exception e)
+        {
+            log.debug("Cannot determine size of git cache " + cache, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return estimate grown by the size of the pack files which have appeared in cache since it was made
+     */
+    @NotNull
+    private static SizeEstimate addFetchedPacks(@NotNull final File cache, @NotNull final SizeEstimate estimate)
+    {
+        long size = estimate.size;
+        final Set<String> packs = new HashSet<String>();
+        for (File pack : listPacks(cache))
+        {
+            packs.add(pack.getName());
+            if (!estimate.packs.contains(pack.getName()))
+            {
+                size += pack.length();
+            }
+        }
+        return new SizeEstimate(size, estimate.measured, packs);
+    }
+
+    @NotNull
+    private static File[] listPacks(@NotNull final File cache)
+    {
+        final File[] packs = new File(new File(new File(cache, Constants.DOT_GIT), "objects"), "pack").listFiles();
+        return packs != null ? packs : new File[0];
+    }
+
+    /**
+     * @return directory of the cache whose kept checkouts directory is, null if it isn't one
+     */
+    @Nullable
+    private static File getCheckoutsOwner(@NotNull final File directory)
+    {
+        final String name = directory.getName();
+        if (!name.endsWith(GitWorkspacePopulator.CHECKOUTS_SUFFIX) || name.length() == GitWorkspacePopulator.CHECKOUTS_SUFFIX.length())
+        {
+            return null;
+        }
+        return new File(directory.getParentFile(), StringUtils.removeEnd(name, GitWorkspacePopulator.CHECKOUTS_SUFFIX));
+    }
+
+    private static boolean remove(@NotNull final CacheEntry entry, final long minIdleMillis)
+    {
+        // kept checkouts first, a cache is never left with checkouts of revisions it no longer has
+        if (entry.checkouts != null && entry.checkouts.exists() && !remove(entry.checkouts, minIdleMillis))
+        {
+            return false;
+        }
+        return remove(entry.cache, minIdleMillis);
+    }
+
+    private static boolean remove(@NotNull final File cache, final long minIdleMillis)
+    {
+        try
+        {
+            return GitCacheDirectory.getCacheLock(cache).withLock(new Callable<Boolean>()
+            {
+                public Boolean call() throws IOException
+                {
+                    // a build may have picked the cache while we were waiting for the lock
+                    if (!cache.exists() || !isIdle(getLastAccess(cache), minIdleMillis))
+                    {
+                        return false;
+                    }
+                    GitBatchCheckWorker.closeWorkers(cache);
+                    FileUtils.forceDelete(cache);
+                    sizes.remove(cache);
+                    lastAccessTimes.remove(cache);
+                    GitCacheDirectory.forgetCache(cache);
+                    return true;
+                }
+            });
+        }
+        catch (Exception e)
+        {
+            log.warn("Cannot remove git cache " + cache, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.build.logger.NullBuildLogger;
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.opensymphony.xwork.TextProvider;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * Fetching of agent caches from the caches of the Bamboo server instead of the origin repository, so that remote
+ * agents only go to the origin for what the server hasn't fetched yet.
+ * <p/>
+ * atlassian.bamboo.git.cache.mirror is a directory (e.g. a read-only mount of the server's
+ * <code>_git-repositories-cache</code>) or a base URL under which the server's caches are served by git, each under
+ * the name of its cache directory. Only full caches are mirrored, as shallow ones are kept per branch. Mirrors are
+ * fetched with JGit, which can't fill in the blobs partial clones (see {@link GitPartialClone}) lack, so neither
+ * partial caches nor partial mirrors in a directory are used.
+ */
+class GitCacheMirror
+{
+    private static final Logger log = Logger.getLogger(GitCacheMirror.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String MIRROR_LOCATION = new SystemProperty(false, "atlassian.bamboo.git.cache.mirror", "GIT_CACHE_MIRROR").getValue("");
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private GitCacheMirror()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    static boolean isEnabled()
+    {
+        return StringUtils.isNotBlank(MIRROR_LOCATION);
+    }
+
+    /**
+     * @return URL of the server cache of the repository in accessData, found in location
+     */
+    @NotNull
+    static String getMirrorUrl(@NotNull final String location, @NotNull final GitRepository.GitRepositoryAccessData accessData)
+    {
+        final String cacheName = GitCacheDirectory.calculateAggregateSha(accessData.repositoryUrl, accessData.username);
+        if (location.contains("://"))
+        {
+            return StringUtils.removeEnd(location, "/") + "/" + cacheName;
+        }
+        return new File(location, cacheName).getAbsolutePath();
+    }
+
+    /**
+     * Fetches the branch in accessData into cacheDirectory from its mirror in location. Must be called with the
+     * exclusive lock of the cache held. Failures aren't fatal, the caller goes on to fetch from the origin.
+     *
+     * @return true if targetRevision is in the cache afterwards
+     */
+    static boolean fetch(@NotNull final File cacheDirectory,
+                         @NotNull final GitRepository.GitRepositoryAccessData accessData,
+                         @NotNull final String location,
+                         @NotNull final String targetRevision,
+                         @NotNull final TextProvider textProvider)
+    {
+        final GitRepository.GitRepositoryAccessData mirrorAccessData = accessData.cloneAccessData();
+        mirrorAccessData.repositoryUrl = getMirrorUrl(location, accessData);
+        if (GitPartialClone.isPartialClone(new File(cacheDirectory, Constants.DOT_GIT))
+            || !location.contains("://") && GitPartialClone.isPartialClone(new File(mirrorAccessData.repositoryUrl, Constants.DOT_GIT)))
+        {
+            log.info("Not fetching " + cacheDirectory + " from " + mirrorAccessData.repositoryUrl + ", partial clones can't be mirrored");
+            return false;
+        }
+        mirrorAccessData.authenticationType = GitAuthenticationType.NONE;
+        mirrorAccessData.username = null;
+        mirrorAccessData.password = null;
+        mirrorAccessData.sshKey = null;
+        mirrorAccessData.sshPassphrase = null;
+        mirrorAccessData.useShallowClones = false;
+        mirrorAccessData.useSubmodules = false;
+
+        // the mirror may well not have the branch (yet), which isn't worth an error in the build log
+        final GitOperationHelper helper = new JGitOperationHelper(mirrorAccessData, new NullBuildLogger(), textProvider);
+        try
+        {
+            final long start = System.currentTimeMillis();
+            helper.fetch(cacheDirectory, false);
+            log.info("Fetched " + accessData.branch + " into " + cacheDirectory + " from " + mirrorAccessData.repositoryUrl
+                     + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (Exception e)
+        {
+            log.info("Cannot fetch " + accessData.branch + " into " + cacheDirectory + " from " + mirrorAccessData.repositoryUrl + ": " + e.getMessage());
+            return false;
+        }
+        return helper.isRevisionInCacheRepository(cacheDirectory, targetRevision);
+    }
+}
@@ -0,0 +1,178 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.author.AuthorImpl;
+import com.atlassian.bamboo.commit.CommitFile;
+import com.atlassian.bamboo.commit.CommitFileImpl;
+import com.atlassian.bamboo.commit.CommitImpl;
+import com.atlassian.bamboo.utils.SystemProperty;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * Persistent index of already diffed commits, kept inside a repository's git directory. For each commit it stores the
+ * author, date, message and changed paths, so that plans and plan branches sharing a cache directory don't walk the
+ * trees of the same commits over and over again.
+ * <p/>
+ * Entries are laid out like loose objects: one file per commit, written atomically, so the index can be read and
+ * extended concurrently by builds holding the shared cache lock. Commits never change, hence entries are never updated.
+ */
+class GitChangesetIndex
+{
+    private static final Logger log = Logger.getLogger(GitChangesetIndex.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final boolean CHANGESET_INDEX_ENABLED = new SystemProperty(false, "atlassian.bamboo.git.changeset.index", "GIT_CHANGESET_INDEX").getValue(true);
+
+    static final String INDEX_DIRECTORY = "bamboo-changeset-index";
+
+    private static final String VERSION = "1";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_AUTHOR = "author";
+    private static final String KEY_EMAIL = "email";
+    private static final String KEY_DATE = "date";
+    private static final String KEY_MESSAGE = "message";
+    private static final String KEY_FILES = "files";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final File indexDirectory;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    GitChangesetIndex(@NotNull final File gitDirectory)
+    {
+        this.indexDirectory = new File(gitDirectory, INDEX_DIRECTORY);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @return commit as stored in the index, or null if it has not been indexed yet or the entry is unreadable
+     */
+    @Nullable
+    CommitImpl get(@NotNull final AnyObjectId commitId)
+    {
+        final File entryFile = getEntryFile(commitId);
+        if (!entryFile.isFile())
+        {
+            return null;
+        }
+
+        final Properties entry = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(entryFile);
+            entry.load(in);
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot read changeset index entry " + entryFile, e);
+            return null;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+
+        if (!VERSION.equals(entry.getProperty(KEY_VERSION)) || entry.getProperty(KEY_DATE) == null)
+        {
+            return null;
+        }
+
+        final String commitName = commitId.getName();
+        final CommitImpl commit = new CommitImpl();
+        commit.setChangeSetId(commitName);
+        commit.setComment(entry.getProperty(KEY_MESSAGE));
+        final String author = entry.getProperty(KEY_AUTHOR, AuthorImpl.UNKNOWN_AUTHOR);
+        final String email = entry.getProperty(KEY_EMAIL);
+        commit.setAuthor(email != null ? new AuthorImpl(author, null, email) : new AuthorImpl(author));
+        commit.setDate(new Date(Long.parseLong(entry.getProperty(KEY_DATE))));
+        final String files = entry.getProperty(KEY_FILES);
+        if (StringUtils.isNotEmpty(files))
+        {
+            for (String path : StringUtils.split(files, '\n'))
+            {
+                commit.addFile(new CommitFileImpl(commitName, path));
+            }
+        }
+        return commit;
+    }
+
+    /**
+     * Adds a fully populated commit to the index. Failures are only logged, as the index is just an optimisation.
+     */
+    void put(@NotNull final AnyObjectId commitId, @NotNull final CommitImpl commit)
+    {
+        final String email = commit.getAuthor().getEmail();
+        final Properties entry = new Properties();
+        entry.setProperty(KEY_VERSION, VERSION);
+        entry.setProperty(KEY_AUTHOR, commit.getAuthor().getName());
+        if (email != null)
+        {
+            entry.setProperty(KEY_EMAIL, email);
+        }
+        entry.setProperty(KEY_DATE, Long.toString(commit.getDate().getTime()));
+        entry.setProperty(KEY_MESSAGE, StringUtils.defaultString(commit.getComment()));
+        final StringBuilder files = new StringBuilder();
+        for (CommitFile file : commit.getFiles())
+        {
+            files.append(file.getName()).append('\n');
+        }
+        entry.setProperty(KEY_FILES, files.toString());
+
+        final File entryFile = getEntryFile(commitId);
+        File tmpFile = null;
+        OutputStream out = null;
+        try
+        {
+            FileUtils.forceMkdir(entryFile.getParentFile());
+            tmpFile = File.createTempFile(entryFile.getName(), ".tmp", entryFile.getParentFile());
+            out = new FileOutputStream(tmpFile);
+            entry.store(out, null);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(entryFile) && !entryFile.isFile())
+            {
+                throw new IOException("Cannot rename " + tmpFile + " to " + entryFile);
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot write changeset index entry " + entryFile, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+            if (tmpFile != null)
+            {
+                FileUtils.deleteQuietly(tmpFile); // no-op if renamed
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private File getEntryFile(@NotNull final AnyObjectId commitId)
+    {
+        final String name = commitId.getName();
+        return new File(new File(indexDirectory, name.substring(0, 2)), name.substring(2));
+    }
+}
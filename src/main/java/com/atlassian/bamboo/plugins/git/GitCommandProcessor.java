@@ -10,22 +10,27 @@ import com.atlassian.utils.process.LineOutputHandler;
 import com.atlassian.utils.process.OutputHandler;
 import com.atlassian.utils.process.PluggableProcessHandler;
 import com.atlassian.utils.process.StringOutputHandler;
-import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.transport.RefSpec;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,9 +49,11 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     private final BuildLogger buildLogger;
     private final int commandTimeoutInMinutes;
     private final boolean maxVerboseOutput;
-    private String proxyErrorMessage;
-    private Throwable proxyException;
+    // reported by the SSH proxy thread, possibly for another command sharing the proxy (see GitSshProxyPool)
+    private volatile String proxyErrorMessage;
+    private volatile Throwable proxyException;
     private String sshCommand;
+    private String promisorRemoteUrl;
 
     // ---------------------------------------------------------------------------------------------------- Dependencies
     // ---------------------------------------------------------------------------------------------------- Constructors
@@ -117,7 +124,32 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
 
     public void runFetchCommand(@NotNull final File workingDirectory, @NotNull final GitRepository.GitRepositoryAccessData accessData, RefSpec refSpec, boolean useShallow) throws RepositoryException
     {
-        GitCommandBuilder commandBuilder = createCommandBuilder("fetch", accessData.repositoryUrl, refSpec.toString(), "--update-head-ok");
+        runFetchCommand(workingDirectory, accessData, Collections.singletonList(refSpec), useShallow);
+    }
+
+    public void runFetchCommand(@NotNull final File workingDirectory, @NotNull final GitRepository.GitRepositoryAccessData accessData, @NotNull List<RefSpec> refSpecs, boolean useShallow) throws RepositoryException
+    {
+        runFetchCommand(workingDirectory, accessData, createCommandBuilder("fetch", accessData.repositoryUrl), refSpecs, useShallow);
+    }
+
+    /**
+     * Fetches commits and trees only from the promisor remote, see {@link GitPartialClone}.
+     */
+    public void runBloblessFetchCommand(@NotNull final File workingDirectory, @NotNull final GitRepository.GitRepositoryAccessData accessData, @NotNull List<RefSpec> refSpecs, boolean useShallow) throws RepositoryException
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("-c", "remote." + GitPartialClone.PROMISOR_REMOTE + ".url=" + accessData.repositoryUrl,
+                                                               "fetch", "--filter=" + GitPartialClone.BLOB_FILTER, GitPartialClone.PROMISOR_REMOTE);
+        runFetchCommand(workingDirectory, accessData, commandBuilder, refSpecs, useShallow);
+    }
+
+    private void runFetchCommand(@NotNull final File workingDirectory, @NotNull final GitRepository.GitRepositoryAccessData accessData, @NotNull final GitCommandBuilder commandBuilder,
+                                 @NotNull List<RefSpec> refSpecs, boolean useShallow) throws RepositoryException
+    {
+        for (RefSpec refSpec : refSpecs)
+        {
+            commandBuilder.append(refSpec.toString());
+        }
+        commandBuilder.append("--update-head-ok");
         if (useShallow)
         {
             commandBuilder.shallowClone();
@@ -130,14 +162,41 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
     }
 
+    /**
+     * Repacks the repository into a single pack, with a reachability bitmap if the git version supports it (older
+     * versions ignore the setting), and prunes expired unreachable objects.
+     */
+    public void runGcCommand(@NotNull final File workingDirectory) throws RepositoryException
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("-c", "repack.writeBitmaps=true", "gc", "--quiet");
+        runCommand(commandBuilder, workingDirectory, new GitStringOutputHandler());
+    }
+
+    /**
+     * Repacks all objects of the repository into a single pack, without dropping unreachable ones.
+     */
+    public void runRepackKeepingUnreachableCommand(@NotNull final File workingDirectory) throws RepositoryException
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("-c", "repack.writeBitmaps=false", "repack", "-a", "-d", "-q", "--keep-unreachable");
+        runCommand(commandBuilder, workingDirectory, new GitStringOutputHandler());
+    }
+
     public void runCheckoutCommand(@NotNull final File workingDirectory, String revision) throws RepositoryException
     {
-        /**
-         * this call to git log checks if requested revision is considered as HEAD of resolved branch. If so, instead of calling explicit revision,
-         * checkout to branch is called to avoid DETACHED HEAD
-         */
-        String possibleBranch = getPossibleBranchNameForCheckout(workingDirectory, revision);
+        runCheckoutCommand(workingDirectory, revision, getPossibleBranchNameForCheckout(workingDirectory, revision));
+    }
 
+    /**
+     * @param localRepository already opened repository of workingDirectory, used to look up the branch to checkout
+     */
+    public void runCheckoutCommand(@NotNull final File workingDirectory, String revision, @NotNull final Repository localRepository) throws RepositoryException
+    {
+        runCheckoutCommand(workingDirectory, revision, getPossibleBranchNameForCheckout(localRepository, revision));
+    }
+
+    private void runCheckoutCommand(@NotNull final File workingDirectory, String revision, @Nullable String possibleBranch) throws RepositoryException
+    {
+        // if requested revision is the head of a branch, check out the branch instead of the revision to avoid DETACHED HEAD
         String destination = revision;
         if (StringUtils.isNotBlank(possibleBranch))
         {
@@ -147,6 +206,28 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
     }
 
+    /**
+     * Updates index and working tree from previousRevision to revision with a two-way merge, which only touches paths
+     * that differ between them. HEAD is left as it is.
+     *
+     * @return false if tracked files have local changes against previousRevision or the update would overwrite
+     * untracked files; nothing is changed then
+     */
+    public boolean runReadTreeUpdateCommand(@NotNull final File workingDirectory, @NotNull final String previousRevision, @NotNull final String revision) throws RepositoryException
+    {
+        try
+        {
+            runCommand(createCommandBuilder("diff-index", "--quiet", previousRevision, "--"), workingDirectory, new GitStringOutputHandler());
+            runCommand(createCommandBuilder("read-tree", "-m", "-u", previousRevision, revision), workingDirectory, new GitStringOutputHandler());
+            return true;
+        }
+        catch (GitCommandException e)
+        {
+            log.debug("Cannot update " + workingDirectory + " from " + previousRevision + " to " + revision + " incrementally: " + e.getMessage());
+            return false;
+        }
+    }
+
     public void runSubmoduleUpdateCommand(@NotNull final File workingDirectory) throws RepositoryException
     {
         GitCommandBuilder commandBuilder = createCommandBuilder("submodule", "update", "--init", "--recursive");
@@ -154,34 +235,103 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
     }
 
+    /**
+     * Creates worktreeDirectory as a worktree of the repository in workingDirectory, checked out at revision with a
+     * detached HEAD. Worktrees whose directories have been removed are unregistered first.
+     */
+    public void runWorktreeAddCommand(@NotNull final File workingDirectory, @NotNull final File worktreeDirectory, @NotNull final String revision) throws RepositoryException
+    {
+        runCommand(createCommandBuilder("worktree", "prune"), workingDirectory, new GitStringOutputHandler());
+        GitCommandBuilder commandBuilder = createCommandBuilder("worktree", "add", "--detach", worktreeDirectory.getAbsolutePath(), revision);
+        runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
+    }
+
+    public void runDetachedCheckoutCommand(@NotNull final File workingDirectory, @NotNull final String revision) throws RepositoryException
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("checkout", "-f", "--detach", revision);
+        runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
+    }
+
     // -------------------------------------------------------------------------------------------------- Helper Methods
 
     public String getPossibleBranchNameForCheckout(File workingDirectory, String revision) throws RepositoryException
     {
-        GitCommandBuilder commandBuilder = createCommandBuilder("log", "-1", "--format=%d", "--decorate=full");
-        commandBuilder.append(revision);
-        final GitStringOutputHandler outputHandler = new GitStringOutputHandler();
-        runCommand(commandBuilder, workingDirectory, outputHandler);
+        FileRepository localRepository = null;
+        try
+        {
+            localRepository = new FileRepository(GitWorktree.getRepositoryDirectory(workingDirectory));
+            return getPossibleBranchNameForCheckout(localRepository, revision);
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException("Cannot read branches of " + workingDirectory, e);
+        }
+        finally
+        {
+            if (localRepository != null)
+            {
+                localRepository.close();
+            }
+        }
+    }
 
-        String revisionDescription = outputHandler.getOutput();
-        if (StringUtils.isNotBlank(revisionDescription))
+    /**
+     * Finds a local branch whose head is revision. Refs are read in-process, without spawning git.
+     *
+     * @return short name of the branch (the current one, if it qualifies), empty string if there's no such branch
+     */
+    @NotNull
+    public String getPossibleBranchNameForCheckout(@NotNull Repository localRepository, String revision) throws RepositoryException
+    {
+        try
         {
-            Set<String> possibleBranches = Sets.newHashSet(
-                    Splitter.on(',').trimResults().split(
-                            CharMatcher.anyOf("()").removeFrom(StringUtils.trim(revisionDescription))));
-            for (String possibleBranch : possibleBranches)
+            final ObjectId revisionId = localRepository.resolve(revision);
+            if (revisionId == null)
+            {
+                return "";
+            }
+
+            final Map<String, Ref> branches = localRepository.getRefDatabase().getRefs(Constants.R_HEADS);
+            final String currentBranch = localRepository.getBranch();
+            final Ref current = currentBranch != null ? branches.get(currentBranch) : null;
+            if (current != null && revisionId.equals(current.getObjectId()))
+            {
+                return currentBranch;
+            }
+            for (Map.Entry<String, Ref> branch : new TreeMap<String, Ref>(branches).entrySet())
             {
-                if (possibleBranch.startsWith(Constants.R_HEADS))
+                if (revisionId.equals(branch.getValue().getObjectId()))
                 {
-                    return StringUtils.removeStart(possibleBranch, Constants.R_HEADS);
+                    return branch.getKey();
                 }
             }
+            return "";
         }
-        return "";
+        catch (IOException e)
+        {
+            throw new RepositoryException("Cannot read branches of " + localRepository.getDirectory(), e);
+        }
+    }
+
+    /**
+     * Resolves revision in the repository in workingDirectory through a long-lived git process, see
+     * {@link GitBatchCheckWorker}.
+     *
+     * @return object id, null if the revision can't be resolved or the object is missing
+     */
+    @Nullable
+    public String getObjectId(@NotNull final File workingDirectory, @NotNull final String revision) throws IOException
+    {
+        return GitBatchCheckWorker.getObjectId(gitExecutable, workingDirectory, revision, TimeUnit.MINUTES.toMillis(commandTimeoutInMinutes));
     }
 
     public GitCommandBuilder createCommandBuilder(String... commands)
     {
+        if (promisorRemoteUrl != null)
+        {
+            // missing objects of a partial clone are fetched from there
+            commands = (String[]) ArrayUtils.addAll(new String[] {"-c", "remote." + GitPartialClone.PROMISOR_REMOTE + ".url=" + promisorRemoteUrl}, commands);
+        }
         return new GitCommandBuilder(commands)
                 .executable(gitExecutable)
                 .sshCommand(sshCommand);
@@ -204,6 +354,10 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         //noinspection ResultOfMethodCallIgnored
         workingDirectory.mkdirs();
 
+        // errors of earlier commands, or of other builds using the same pooled proxy, don't belong to this one
+        proxyErrorMessage = null;
+        proxyException = null;
+
         PluggableProcessHandler handler = new PluggableProcessHandler();
         handler.setOutputHandler(outputHandler);
         handler.setErrorHandler(outputHandler);
@@ -236,12 +390,13 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
 
         if (!handler.succeeded())
         {
+            final String errorMessage = proxyErrorMessage;
             // command may contain user password (url) in plaintext -> hide it from bamboo plan/build logs. see BAM-5781
             throw new GitCommandException(
                     "command " + RepositoryUrlObfuscator.obfuscatePasswordsInUrls(commandArgs) + " failed with code " + handler.getExitCode() + "." +
                     " Working directory was ["+ workingDirectory + "].", proxyException != null ? proxyException : handler.getException(),
                     outputHandler.getStdout(),
-                    proxyErrorMessage != null ? "SSH Proxy error: " + proxyErrorMessage : outputHandler.getStdout());
+                    errorMessage != null ? "SSH Proxy error: " + errorMessage : outputHandler.getStdout());
         }
 
         return handler.getExitCode();
@@ -330,4 +485,13 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     {
         this.sshCommand = sshCommand;
     }
+
+    /**
+     * @param promisorRemoteUrl URL to fetch missing objects of partial clones from in commands created from now on,
+     * null if they shouldn't be fetched
+     */
+    public void setPromisorRemoteUrl(@Nullable String promisorRemoteUrl)
+    {
+        this.promisorRemoteUrl = promisorRemoteUrl;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,221 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+import com.atlassian.bamboo.utils.SystemProperty;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight fetching into git cache directories. Callers fetching the same refspec into the same cache while a
+ * fetch is in progress wait for that fetch instead of issuing their own, and callers arriving shortly after it
+ * completed skip fetching altogether if the revision they need is already in the cache.
+ */
+class GitFetchCoalescer
+{
+    private static final Logger log = Logger.getLogger(GitFetchCoalescer.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int FETCH_COALESCE_WINDOW_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.fetch.coalesce.window", "GIT_FETCH_COALESCE_WINDOW").getValue(10);
+    static final boolean BATCHED_FETCH = new SystemProperty(false, "atlassian.bamboo.git.fetch.batched", "GIT_FETCH_BATCHED").getValue(false);
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static final ConcurrentMap<String, FutureTask<Void>> fetchesInProgress = new ConcurrentHashMap<String, FutureTask<Void>>();
+    private static final ConcurrentMap<String, Long> lastFetchTimes = new ConcurrentHashMap<String, Long>();
+    private static final AtomicLong joinedFetchCount = new AtomicLong();
+
+    interface Fetcher
+    {
+        void fetch() throws RepositoryException;
+
+        boolean isRevisionPresent(@NotNull String revision);
+    }
+
+    private GitFetchCoalescer()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Fetches the branch configured in helper into cacheDirectory, sharing the fetch with concurrent callers. In
+     * batched mode a full (non-shallow) fetch updates all branches recently used with the cache in one go, so that
+     * builds of different plan branches share it as well.
+     */
+    static void fetch(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, final boolean useShallow, @Nullable final String targetRevision) throws RepositoryException
+    {
+        final boolean batched = BATCHED_FETCH && !useShallow;
+        final String refSpecKey;
+        if (batched)
+        {
+            GitCacheDirectory.trackBranch(cacheDirectory, helper.accessData.branch);
+            refSpecKey = "(all tracked branches)";
+        }
+        else
+        {
+            refSpecKey = helper.accessData.branch + (useShallow ? " (shallow)" : "");
+        }
+
+        final File objectStore = GitCacheDirectory.getSharedObjectStore(cacheDirectory, helper.accessData);
+        fetch(cacheDirectory, refSpecKey, targetRevision, new Fetcher()
+        {
+            public void fetch() throws RepositoryException
+            {
+                if (batched)
+                {
+                    final Set<String> branches = GitCacheDirectory.getTrackedBranches(cacheDirectory);
+                    branches.add(helper.accessData.branch);
+                    helper.fetch(cacheDirectory, branches, false);
+                }
+                else
+                {
+                    helper.fetch(cacheDirectory, useShallow);
+                    if (objectStore != null)
+                    {
+                        addToSharedObjectStore(cacheDirectory, objectStore);
+                    }
+                }
+            }
+
+            public boolean isRevisionPresent(@NotNull String revision)
+            {
+                return helper.isRevisionInCacheRepository(cacheDirectory, revision);
+            }
+        });
+        GitCacheMaintenance.maintainIfDue(helper, cacheDirectory);
+        GitBundles.refreshIfDue(cacheDirectory, helper.accessData, useShallow);
+        if (objectStore != null)
+        {
+            GitCacheMaintenance.maintainObjectStoreIfDue(helper, objectStore);
+        }
+    }
+
+    /**
+     * Runs fetcher under the exclusive cache lock of cacheDirectory, unless a fetch with the same key is already in
+     * progress (in which case its outcome is shared) or has just completed and targetRevision is already present.
+     *
+     * @param targetRevision revision the caller needs, null if unknown (disables skipping of recently fetched caches)
+     */
+    static void fetch(@NotNull final File cacheDirectory, @NotNull final String refSpecKey, @Nullable final String targetRevision, @NotNull final Fetcher fetcher) throws RepositoryException
+    {
+        final String key = cacheDirectory.getAbsolutePath() + "\n" + refSpecKey;
+        while (true)
+        {
+            final FutureTask<Void> fetchTask = new FutureTask<Void>(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    return GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
+                    {
+                        public Void call() throws Exception
+                        {
+                            if (targetRevision != null && isFetchedRecently(key) && fetcher.isRevisionPresent(targetRevision))
+                            {
+                                log.debug("Skipping fetch into " + cacheDirectory + ", " + targetRevision + " has been fetched a moment ago");
+                                return null;
+                            }
+                            fetcher.fetch();
+                            lastFetchTimes.put(key, System.currentTimeMillis());
+                            GitCacheManager.recordFetch(cacheDirectory);
+                            return null;
+                        }
+                    });
+                }
+            });
+
+            final FutureTask<Void> inProgress = fetchesInProgress.putIfAbsent(key, fetchTask);
+            if (inProgress == null)
+            {
+                try
+                {
+                    fetchTask.run();
+                }
+                finally
+                {
+                    fetchesInProgress.remove(key, fetchTask);
+                }
+                getResult(fetchTask);
+                return;
+            }
+
+            log.debug("Waiting for fetch into " + cacheDirectory + " already in progress");
+            joinedFetchCount.incrementAndGet();
+            getResult(inProgress);
+            if (targetRevision == null || fetcher.isRevisionPresent(targetRevision))
+            {
+                return;
+            }
+            // the fetch we joined started before targetRevision was pushed, go for our own
+        }
+    }
+
+    /**
+     * @return number of callers which have waited for a fetch already in progress instead of fetching themselves
+     */
+    public static long getJoinedFetchCount()
+    {
+        return joinedFetchCount.get();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static void addToSharedObjectStore(@NotNull final File cacheDirectory, @NotNull final File objectStore) throws RepositoryException
+    {
+        try
+        {
+            GitSharedObjectStore.addObjects(cacheDirectory, objectStore);
+        }
+        catch (Exception e)
+        {
+            throw new RepositoryException("Cannot move objects of " + cacheDirectory + " to " + objectStore, e);
+        }
+    }
+
+    private static boolean isFetchedRecently(@NotNull final String key)
+    {
+        final Long lastFetchTime = lastFetchTimes.get(key);
+        return lastFetchTime != null && System.currentTimeMillis() - lastFetchTime < TimeUnit.SECONDS.toMillis(FETCH_COALESCE_WINDOW_SECONDS);
+    }
+
+    private static void getResult(@NotNull final FutureTask<Void> fetchTask) throws RepositoryException
+    {
+        try
+        {
+            fetchTask.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for git fetch", e);
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RepositoryException)
+            {
+                throw (RepositoryException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new RepositoryException(cause.getMessage(), cause);
+        }
+    }
+}
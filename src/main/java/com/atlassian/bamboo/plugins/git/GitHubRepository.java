@@ -51,6 +51,7 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
     private static final String REPOSITORY_GITHUB_BRANCH = "repository.github.branch";
     private static final String REPOSITORY_GITHUB_USE_SHALLOW_CLONES = "repository.github.useShallowClones";
     private static final String REPOSITORY_GITHUB_USE_SUBMODULES = "repository.github.useSubmodules";
+    private static final String REPOSITORY_GITHUB_SPARSE_CHECKOUT_PATHS = "repository.github.sparseCheckoutPaths";
     private static final String REPOSITORY_GITHUB_COMMAND_TIMEOUT = "repository.github.commandTimeout";
     private static final String REPOSITORY_GITHUB_VERBOSE_LOGS = "repository.github.verbose.logs";
 
@@ -70,6 +71,7 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
     private String branch;
     private boolean useShallowClones;
     private boolean useSubmodules;
+    private String sparseCheckoutPaths;
     private boolean verboseLogs;
     private int commandTimeout;
 
@@ -155,6 +157,7 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
         buildConfiguration.clearTree(REPOSITORY_GITHUB_VERBOSE_LOGS);
         buildConfiguration.setProperty(REPOSITORY_GITHUB_USE_SHALLOW_CLONES, true);
         buildConfiguration.clearTree(REPOSITORY_GITHUB_USE_SUBMODULES);
+        buildConfiguration.clearTree(REPOSITORY_GITHUB_SPARSE_CHECKOUT_PATHS);
 
     }
 
@@ -179,6 +182,7 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
         branch = config.getString(REPOSITORY_GITHUB_BRANCH);
         useShallowClones = config.getBoolean(REPOSITORY_GITHUB_USE_SHALLOW_CLONES);
         useSubmodules = config.getBoolean(REPOSITORY_GITHUB_USE_SUBMODULES);
+        sparseCheckoutPaths = config.getString(REPOSITORY_GITHUB_SPARSE_CHECKOUT_PATHS, "");
         commandTimeout = config.getInt(REPOSITORY_GITHUB_COMMAND_TIMEOUT, GitRepository.DEFAULT_COMMAND_TIMEOUT_IN_MINUTES);
         verboseLogs = config.getBoolean(REPOSITORY_GITHUB_VERBOSE_LOGS, false);
 
@@ -191,6 +195,7 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
         gitRepository.accessData.authenticationType = GitAuthenticationType.PASSWORD;
         gitRepository.accessData.useShallowClones = useShallowClones;
         gitRepository.accessData.useSubmodules = useSubmodules;
+        gitRepository.accessData.sparseCheckoutPaths = sparseCheckoutPaths;
         gitRepository.accessData.commandTimeout = commandTimeout;
         gitRepository.accessData.verboseLogs = verboseLogs;
 
@@ -208,6 +213,7 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
         configuration.setProperty(REPOSITORY_GITHUB_BRANCH, branch);
         configuration.setProperty(REPOSITORY_GITHUB_USE_SHALLOW_CLONES, useShallowClones);
         configuration.setProperty(REPOSITORY_GITHUB_USE_SUBMODULES, useSubmodules);
+        configuration.setProperty(REPOSITORY_GITHUB_SPARSE_CHECKOUT_PATHS, sparseCheckoutPaths);
         configuration.setProperty(REPOSITORY_GITHUB_COMMAND_TIMEOUT, commandTimeout);
         configuration.setProperty(REPOSITORY_GITHUB_VERBOSE_LOGS, verboseLogs);
 
@@ -287,6 +293,11 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
         return useSubmodules;
     }
 
+    public String getSparseCheckoutPaths()
+    {
+        return sparseCheckoutPaths;
+    }
+
     public int getCommandTimeout()
     {
         return commandTimeout;
@@ -20,7 +20,6 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.Constants;
@@ -28,6 +27,7 @@ import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
@@ -40,8 +40,6 @@ import org.eclipse.jgit.transport.SshTransport;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.TransportHttp;
 import org.eclipse.jgit.transport.URIish;
-import org.eclipse.jgit.treewalk.EmptyTreeIterator;
-import org.eclipse.jgit.treewalk.TreeWalk;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -52,7 +50,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Class used for issuing various git operations. We don't want to hold this logic in
@@ -64,10 +65,13 @@ public abstract class GitOperationHelper
     // ------------------------------------------------------------------------------------------------------- Constants
     private static final int DEFAULT_TRANSFER_TIMEOUT = new SystemProperty(false, "atlassian.bamboo.git.timeout", "GIT_TIMEOUT").getValue(10 * 60);
     private static final int CHANGESET_LIMIT = new SystemProperty(false, "atlassian.bamboo.git.changeset.limit", "GIT_CHANGESET_LIMIT").getValue(100);
+    private static final int SKIPPED_COMMITS_COUNT_LIMIT = new SystemProperty(false, "atlassian.bamboo.git.changeset.skipped.count.limit", "GIT_CHANGESET_SKIPPED_COUNT_LIMIT").getValue(10000);
 
     private static final String[] FQREF_PREFIXES = {Constants.R_HEADS, Constants.R_REFS};
     protected final GitRepositoryAccessData accessData;
     // ------------------------------------------------------------------------------------------------- Type Properties
+    // refs advertised by the remote repository, listed once per operation (helpers are created for a single one)
+    private Map<String, Ref> advertisedRefs;
     // ---------------------------------------------------------------------------------------------------- Dependencies
     protected final BuildLogger buildLogger;
     protected final TextProvider textProvider;
@@ -87,7 +91,7 @@ public abstract class GitOperationHelper
 
     protected abstract void doFetch(@NotNull final Transport transport,
                                     @NotNull final File sourceDirectory,
-                                    RefSpec refSpec,
+                                    @NotNull List<RefSpec> refSpecs,
                                     boolean useShallow) throws RepositoryException;
 
     protected abstract String doCheckout(@NotNull final FileRepository localRepository,
@@ -177,51 +181,96 @@ public abstract class GitOperationHelper
 
     public void fetch(@NotNull final File sourceDirectory, boolean useShallow) throws RepositoryException
     {
-        fetch(sourceDirectory, accessData.branch, useShallow);
+        fetch(sourceDirectory, Collections.singletonList(accessData.branch), useShallow);
     }
 
-    private void fetch(@NotNull final File sourceDirectory, final String branch, final boolean useShallow) throws RepositoryException
+    /**
+     * Fetches several branches of the repository in a single negotiation with the remote. The branch this helper has
+     * been created for has to exist, other branches which can no longer be resolved (e.g. have been removed) are
+     * skipped.
+     */
+    public void fetch(@NotNull final File sourceDirectory, @NotNull final Collection<String> branches, final boolean useShallow) throws RepositoryException
     {
-        final String[] branchDescription = {"(unresolved) " + branch};
+        final String[] branchDescription = {"(unresolved) " + accessData.branch};
         try
         {
+            final boolean seedFromBundle = !useShallow && GitBundles.isSeedingEnabled() && !new File(sourceDirectory, Constants.DOT_GIT).exists();
             final FileRepository localRepository = createLocalRepository(sourceDirectory, null);
             try
             {
+                if (seedFromBundle)
+                {
+                    seedFromBundle(localRepository);
+                }
                 withTransport(localRepository, accessData, new WithTransportCallback<Exception, Void>()
                 {
                     @Override
                     public Void doWithTransport(@NotNull Transport transport) throws Exception
                     {
-                        final String resolvedBranch;
-                        if (StringUtils.startsWithAny(branch, FQREF_PREFIXES))
-                        {
-                            resolvedBranch = branch;
-                        }
-                        else
+                        final Set<String> resolvedBranches = new LinkedHashSet<String>();
+                        String resolvedBranch = null;
+                        Map<String, Ref> remoteRefs = null;
+                        boolean refsListedNow = false;
+                        for (String branch : branches)
                         {
-                            resolvedBranch = withFetchConnection(transport, new WithFetchConnectionCallback<Exception, String>()
+                            final boolean requiredBranch = StringUtils.equals(branch, accessData.branch);
+                            final String resolvedName;
+                            if (StringUtils.startsWithAny(branch, FQREF_PREFIXES))
+                            {
+                                resolvedName = branch;
+                            }
+                            else
                             {
-                                @Override
-                                public String doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws Exception
+                                if (remoteRefs == null)
                                 {
-                                    final Ref ref = resolveRefSpec(branch, connection);
-                                    return ref.getName();
+                                    // refs listed earlier in this operation resolve the branch it's for, but other
+                                    // branches may have been removed since then, which would fail the fetch
+                                    refsListedNow = advertisedRefs == null || branches.size() > 1;
+                                    remoteRefs = refsListedNow ? listRemoteRefs(transport) : advertisedRefs;
                                 }
-                            });
+                                Ref ref = resolveRefSpec(branch, remoteRefs);
+                                if (ref == null && requiredBranch && !refsListedNow)
+                                {
+                                    // the branch may have been created after the refs were listed
+                                    remoteRefs = listRemoteRefs(transport);
+                                    refsListedNow = true;
+                                    ref = resolveRefSpec(branch, remoteRefs);
+                                }
+                                if (ref == null)
+                                {
+                                    if (requiredBranch)
+                                    {
+                                        throw new RepositoryException(textProvider.getText("repository.git.messages.cannotDetermineHead", Arrays.asList(accessData.repositoryUrl, branch)));
+                                    }
+                                    log.info("Branch " + branch + " of " + accessData.repositoryUrl + " no longer exists, not fetching it");
+                                    continue;
+                                }
+                                resolvedName = ref.getName();
+                            }
+                            if (requiredBranch)
+                            {
+                                resolvedBranch = resolvedName;
+                            }
+                            resolvedBranches.add(resolvedName);
                         }
-                        branchDescription[0] = resolvedBranch;
+                        branchDescription[0] = StringUtils.join(resolvedBranches, ", ");
 
-                        buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.fetchingBranch", Arrays.asList(resolvedBranch, accessData.repositoryUrl))
+                        buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.fetchingBranch", Arrays.asList(branchDescription[0], accessData.repositoryUrl))
                                                              + (useShallow ? " " + textProvider.getText("repository.git.messages.doingShallowFetch") : ""));
-                        RefSpec refSpec = new RefSpec()
-                                .setForceUpdate(true)
-                                .setSource(resolvedBranch)
-                                .setDestination(resolvedBranch);
+                        final List<RefSpec> refSpecs = new ArrayList<RefSpec>();
+                        for (String name : resolvedBranches)
+                        {
+                            refSpecs.add(new RefSpec()
+                                    .setForceUpdate(true)
+                                    .setSource(name)
+                                    .setDestination(name));
+                        }
 
-                        doFetch(transport, sourceDirectory, refSpec, useShallow);
+                        doFetch(transport, sourceDirectory, refSpecs, useShallow);
+                        // also cleans up after an earlier catch-up fetch which has failed
+                        GitBundles.removeSeedRefs(localRepository);
 
-                        if (resolvedBranch.startsWith(Constants.R_HEADS))
+                        if (resolvedBranch != null && resolvedBranch.startsWith(Constants.R_HEADS))
                         {
                             localRepository.updateRef(Constants.HEAD).link(resolvedBranch);
                         }
@@ -242,6 +291,22 @@ public abstract class GitOperationHelper
         }
     }
 
+    private void seedFromBundle(@NotNull final FileRepository localRepository)
+    {
+        try
+        {
+            if (GitBundles.seed(localRepository, accessData, GitBundles.BUNDLE_LOCATION))
+            {
+                buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.seededFromBundle", Arrays.asList(localRepository.getDirectory(), GitBundles.getBundleName(accessData))));
+            }
+        }
+        catch (Exception e)
+        {
+            // the fetch which follows gets everything anyway
+            log.warn("Cannot seed " + localRepository.getDirectory() + " from bundle " + GitBundles.getBundleName(accessData), e);
+        }
+    }
+
     @NotNull
     public String getCurrentRevision(@NotNull final File sourceDirectory) throws RepositoryException
     {
@@ -297,22 +362,20 @@ public abstract class GitOperationHelper
     {
         try
         {
-            return withFetchConnection(new FileRepository(""), accessData, new WithFetchConnectionCallback<RepositoryException, String>()
+            Ref headRef = resolveRefSpec(accessData.branch, getRemoteRefs());
+            if (headRef == null)
             {
-                @Override
-                public String doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws RepositoryException
-                {
-                    Ref headRef = resolveRefSpec(accessData.branch, connection);
-                    if (headRef == null)
-                    {
-                        throw new InvalidRepositoryException(textProvider.getText("repository.git.messages.cannotDetermineHead", Arrays.asList(accessData.repositoryUrl, accessData.branch)));
-                    }
-                    else
-                    {
-                        return headRef.getObjectId().getName();
-                    }
-                }
-            });
+                // the branch may have been created after the shared ref listing was taken
+                headRef = resolveRefSpec(accessData.branch, reloadRemoteRefs());
+            }
+            if (headRef == null)
+            {
+                throw new InvalidRepositoryException(textProvider.getText("repository.git.messages.cannotDetermineHead", Arrays.asList(accessData.repositoryUrl, accessData.branch)));
+            }
+            else
+            {
+                return headRef.getObjectId().getName();
+            }
         }
         catch (NotSupportedException e)
         {
@@ -333,22 +396,15 @@ public abstract class GitOperationHelper
     {
         try
         {
-            return withFetchConnection(new FileRepository(""), accessData, new WithFetchConnectionCallback<RepositoryException, List<VcsBranch>>()
+            List<VcsBranch> openBranches = Lists.newArrayList();
+            for (Ref ref : getRemoteRefs().values())
             {
-                @Override
-                public List<VcsBranch> doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws RepositoryException
+                if (ref.getName().startsWith(Constants.R_HEADS))
                 {
-                    List<VcsBranch> openBranches = Lists.newArrayList();
-                    for (Ref ref : connection.getRefs())
-                    {
-                        if (ref.getName().startsWith(Constants.R_HEADS))
-                        {
-                            openBranches.add(new VcsBranchImpl(ref.getName().substring(Constants.R_HEADS.length())));
-                        }
-                    }
-                    return openBranches;
+                    openBranches.add(new VcsBranchImpl(ref.getName().substring(Constants.R_HEADS.length())));
                 }
-            });
+            }
+            return openBranches;
         }
         catch (NotSupportedException e)
         {
@@ -364,6 +420,76 @@ public abstract class GitOperationHelper
         }
     }
 
+    /**
+     * Returns refs advertised by the remote repository, shared with other plans polling the same repository
+     * (see {@link GitRemoteRefsCache}). The listing is kept for the rest of the operation, so that resolving the
+     * revision and the branches to fetch doesn't connect to the remote repository again.
+     */
+    @NotNull
+    protected Map<String, Ref> getRemoteRefs() throws IOException, RepositoryException
+    {
+        if (advertisedRefs == null)
+        {
+            advertisedRefs = loadRemoteRefs();
+        }
+        return advertisedRefs;
+    }
+
+    /**
+     * Lists the refs of the remote repository again, refreshing the shared listing in place
+     * (see {@link GitRemoteRefsCache#reload}).
+     */
+    @NotNull
+    protected Map<String, Ref> reloadRemoteRefs() throws IOException, RepositoryException
+    {
+        advertisedRefs = GitRemoteRefsCache.reload(accessData, createRemoteRefsLoader());
+        return advertisedRefs;
+    }
+
+    /**
+     * Lists refs of the remote repository on an already opened transport, bypassing {@link GitRemoteRefsCache}.
+     */
+    @NotNull
+    private Map<String, Ref> listRemoteRefs(@NotNull final Transport transport) throws Exception
+    {
+        advertisedRefs = withFetchConnection(transport, new WithFetchConnectionCallback<Exception, Map<String, Ref>>()
+        {
+            @Override
+            public Map<String, Ref> doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws Exception
+            {
+                return connection.getRefsMap();
+            }
+        });
+        return advertisedRefs;
+    }
+
+    @NotNull
+    private Map<String, Ref> loadRemoteRefs() throws IOException, RepositoryException
+    {
+        return GitRemoteRefsCache.getRefs(accessData, createRemoteRefsLoader());
+    }
+
+    @NotNull
+    private GitRemoteRefsCache.RefsLoader createRemoteRefsLoader()
+    {
+        return new GitRemoteRefsCache.RefsLoader()
+        {
+            @NotNull
+            @Override
+            public Map<String, Ref> load() throws IOException, RepositoryException
+            {
+                return withFetchConnection(new FileRepository(""), accessData, new WithFetchConnectionCallback<RepositoryException, Map<String, Ref>>()
+                {
+                    @Override
+                    public Map<String, Ref> doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws RepositoryException
+                    {
+                        return connection.getRefsMap();
+                    }
+                });
+            }
+        };
+    }
+
     /**
      *
      * @param repositoryDirectory directory where repository is fetched
@@ -385,11 +511,75 @@ public abstract class GitOperationHelper
             localRepository.close();
         }
     }
-    
+
+    /**
+     * Repacks the cache repository and prunes unreachable objects. Pruning keeps git's grace period, as workspaces may
+     * still use recently unreferenced objects through alternates.
+     *
+     * @return false if this helper can't maintain repositories (JGit 1.1 has no garbage collector)
+     */
+    public boolean gcCacheRepository(@NotNull File cacheDirectory) throws RepositoryException
+    {
+        return false;
+    }
+
+    /**
+     * Repacks a {@link GitSharedObjectStore} into a single pack, keeping all objects: the store has no refs, its
+     * objects are referenced by the caches using it.
+     *
+     * @return false if this helper can't repack repositories
+     */
+    public boolean repackObjectStore(@NotNull File objectStore) throws RepositoryException
+    {
+        return false;
+    }
+
+    /**
+     * Checks whether a revision is already present in a local repository. Unlike
+     * {@link #checkRevisionExistsInCacheRepository(File, String)}, it never throws and does not parse the commit.
+     *
+     * @param repositoryDirectory directory where repository is fetched
+     * @param targetRevision full SHA-1 of the revision to look up
+     * @return true if the object is present in the repository or its alternates
+     */
+    public boolean isRevisionInCacheRepository(@NotNull File repositoryDirectory, @NotNull String targetRevision)
+    {
+        final File gitDirectory = new File(repositoryDirectory, Constants.DOT_GIT);
+        if (!gitDirectory.isDirectory() || !ObjectId.isId(targetRevision))
+        {
+            return false;
+        }
+
+        FileRepository localRepository = null;
+        try
+        {
+            localRepository = new FileRepository(gitDirectory);
+            return localRepository.hasObject(ObjectId.fromString(targetRevision));
+        }
+        catch (Exception e)
+        {
+            log.debug("Cannot look up " + targetRevision + " in " + repositoryDirectory, e);
+            return false;
+        }
+        finally
+        {
+            if (localRepository != null)
+            {
+                localRepository.close();
+            }
+        }
+    }
+
     // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
 
     @Nullable
     protected static Ref resolveRefSpec(String branch, FetchConnection fetchConnection)
+    {
+        return resolveRefSpec(branch, fetchConnection.getRefsMap());
+    }
+
+    @Nullable
+    protected static Ref resolveRefSpec(String branch, Map<String, Ref> refs)
     {
         final Collection<String> candidates;
         if (StringUtils.isBlank(branch))
@@ -407,7 +597,7 @@ public abstract class GitOperationHelper
 
         for (String candidate : candidates)
         {
-            Ref headRef = fetchConnection.getRef(candidate);
+            Ref headRef = refs.get(candidate);
             if (headRef != null)
             {
                 return headRef;
@@ -485,7 +675,6 @@ public abstract class GitOperationHelper
 
         FileRepository localRepository = null;
         RevWalk revWalk = null;
-        TreeWalk treeWalk = null;
 
         try
         {
@@ -502,14 +691,28 @@ public abstract class GitOperationHelper
                 revWalk.markUninteresting(revWalk.parseCommit(localRepository.resolve(previousRevision)));
             }
 
-            treeWalk = new TreeWalk(localRepository);
-            treeWalk.setRecursive(true);
+            final GitChangesetIndex changesetIndex = GitChangesetIndex.CHANGESET_INDEX_ENABLED ? new GitChangesetIndex(gitDirectory) : null;
 
-            for (final RevCommit jgitCommit : revWalk)
+            // walk first, then diff all the commits which need it in one go (possibly in parallel)
+            final List<RevCommit> commitsToDiff = new ArrayList<RevCommit>();
+            final List<CommitImpl> commitsToFill = new ArrayList<CommitImpl>();
+            final List<GitTreeDiffer.DiffRequest> diffRequests = new ArrayList<GitTreeDiffer.DiffRequest>();
+
+            // RevWalk's iterator reads one commit ahead, which would then be missing from the skipped count
+            RevCommit jgitCommit;
+            while ((jgitCommit = revWalk.next()) != null)
             {
                 if (commits.size() >= CHANGESET_LIMIT)
                 {
-                    skippedCommits++;
+                    // don't walk (possibly) the whole history just to count what's been skipped
+                    skippedCommits = 1 + countRemainingCommits(revWalk, SKIPPED_COMMITS_COUNT_LIMIT > 0 ? SKIPPED_COMMITS_COUNT_LIMIT - 1 : -1);
+                    break;
+                }
+
+                final CommitImpl indexedCommit = changesetIndex != null ? changesetIndex.get(jgitCommit) : null;
+                if (indexedCommit != null)
+                {
+                    commits.add(indexedCommit);
                     continue;
                 }
 
@@ -521,25 +724,45 @@ public abstract class GitOperationHelper
                 commits.add(commit);
                 if (jgitCommit.getParentCount() >= 2) //merge commit
                 {
+                    if (changesetIndex != null)
+                    {
+                        changesetIndex.put(jgitCommit, commit);
+                    }
                     continue;
                 }
 
                 if (localRepository.getShallows().contains(jgitCommit.getId()))
                 {
-                    continue;
+                    continue; // not indexed, the commit's parent may be fetched later
                 }
 
-                treeWalk.reset();
-                int treePosition = jgitCommit.getParentCount() > 0 ? treeWalk.addTree(jgitCommit.getParent(0).getTree()) : treeWalk.addTree(new EmptyTreeIterator());
-                treeWalk.addTree(jgitCommit.getTree());
-
-                for (final DiffEntry entry : DiffEntry.scan(treeWalk))
+                RevTree parentTree = null;
+                if (jgitCommit.getParentCount() > 0)
                 {
-                    if (entry.getOldId().equals(entry.getNewId()))
+                    final RevCommit parent = jgitCommit.getParent(0);
+                    if (parent.getTree() == null)
                     {
-                        continue;
+                        revWalk.parseHeaders(parent);
                     }
-                    commit.addFile(new CommitFileImpl(jgitCommit.getId().getName(), entry.getChangeType() == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath()));
+                    parentTree = parent.getTree();
+                }
+                commitsToDiff.add(jgitCommit);
+                commitsToFill.add(commit);
+                diffRequests.add(new GitTreeDiffer.DiffRequest(parentTree, jgitCommit.getTree()));
+            }
+
+            final List<List<String>> changedPaths = GitTreeDiffer.getChangedPaths(localRepository, diffRequests);
+            for (int i = 0; i < commitsToDiff.size(); i++)
+            {
+                final RevCommit diffedCommit = commitsToDiff.get(i);
+                final CommitImpl commit = commitsToFill.get(i);
+                for (String path : changedPaths.get(i))
+                {
+                    commit.addFile(new CommitFileImpl(diffedCommit.getId().getName(), path));
+                }
+                if (changesetIndex != null)
+                {
+                    changesetIndex.put(diffedCommit, commit);
                 }
             }
         }
@@ -550,10 +773,6 @@ public abstract class GitOperationHelper
         }
         finally
         {
-            if (treeWalk != null)
-            {
-                treeWalk.release();
-            }
             if (revWalk != null)
             {
                 revWalk.release();
@@ -568,6 +787,23 @@ public abstract class GitOperationHelper
         return buildChanges;
     }
 
+    /**
+     * Counts commits left in the walk without keeping their bodies. The walk is abandoned after maxCount commits, so
+     * on huge ranges the result is a lower bound.
+     *
+     * @param maxCount maximum number of commits to count, unlimited if negative
+     */
+    static int countRemainingCommits(@NotNull final RevWalk revWalk, final int maxCount) throws IOException
+    {
+        revWalk.setRetainBody(false);
+        int count = 0;
+        while ((maxCount < 0 || count < maxCount) && revWalk.next() != null)
+        {
+            count++;
+        }
+        return count;
+    }
+
     private AuthorImpl getAuthor(RevCommit commit)
     {
         PersonIdent gitPerson = commit.getAuthorIdent();
@@ -622,8 +858,9 @@ public abstract class GitOperationHelper
 
                 final String sshKey = useKey ? accessData.sshKey : null;
                 final String passphrase = useKey ? accessData.sshPassphrase : null;
+                final String password = accessData.authenticationType == GitAuthenticationType.PASSWORD ? accessData.password : null;
 
-                SshSessionFactory factory = new GitSshSessionFactory(sshKey, passphrase);
+                SshSessionFactory factory = new GitSshSessionFactory(sshKey, passphrase, password);
                 ((SshTransport)transport).setSshSessionFactory(factory);
                 if (passphrase != null)
                 {
@@ -0,0 +1,124 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.util.FS;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Blob-less partial clones for native git: caches (and workspaces of remote agents) are fetched with
+ * <code>--filter=blob:none</code>, so they hold the complete history of commits and trees, while file contents are
+ * fetched lazily by the checkouts which need them.
+ * <p/>
+ * Lazy fetches go to the promisor remote <code>origin</code>. Its URL isn't stored, as it may contain credentials or
+ * point to an SSH proxy registered for a single command; it's passed to each command instead, see
+ * {@link GitCommandProcessor#setPromisorRemoteUrl(String)}. The repository format version is kept at 0 (which git
+ * allows for <code>extensions.partialClone</code>), as JGit refuses to open repositories of later versions.
+ */
+class GitPartialClone
+{
+    private static final Logger log = Logger.getLogger(GitPartialClone.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String PROMISOR_REMOTE = Constants.DEFAULT_REMOTE_NAME;
+    static final String BLOB_FILTER = "blob:none";
+
+    private static final String CONFIG_SECTION_EXTENSIONS = "extensions";
+    private static final String CONFIG_KEY_PARTIAL_CLONE = "partialclone";
+    private static final String CONFIG_KEY_PROMISOR = "promisor";
+    private static final String CONFIG_KEY_PARTIAL_CLONE_FILTER = "partialclonefilter";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private GitPartialClone()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Sets up the repository to be fetched blob-less from the promisor remote.
+     */
+    static void configureFetch(@NotNull final FileRepository repository) throws IOException
+    {
+        final StoredConfig config = repository.getConfig();
+        if (!BLOB_FILTER.equals(config.getString(ConfigConstants.CONFIG_REMOTE_SECTION, PROMISOR_REMOTE, CONFIG_KEY_PARTIAL_CLONE_FILTER)))
+        {
+            config.setString(ConfigConstants.CONFIG_REMOTE_SECTION, PROMISOR_REMOTE, CONFIG_KEY_PARTIAL_CLONE_FILTER, BLOB_FILTER);
+            configurePromisor(config);
+        }
+    }
+
+    /**
+     * Sets up the repository to fetch missing objects lazily from the promisor remote, if it's a partial clone itself
+     * or borrows objects from one.
+     *
+     * @return true if the repository is a partial clone now
+     */
+    static boolean configureLazyFetch(@NotNull final FileRepository repository) throws IOException
+    {
+        if (isPartialClone(repository.getConfig()))
+        {
+            return true;
+        }
+        final File alternatesFile = new File(repository.getObjectsDirectory(), "info/alternates");
+        if (alternatesFile.isFile())
+        {
+            //noinspection unchecked
+            for (String alternate : (List<String>) FileUtils.readLines(alternatesFile))
+            {
+                if (isPartialClone(new File(alternate).getParentFile()))
+                {
+                    configurePromisor(repository.getConfig());
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static boolean isPartialClone(@NotNull final File gitDirectory)
+    {
+        final FileBasedConfig config = new FileBasedConfig(new File(gitDirectory, "config"), FS.DETECTED);
+        try
+        {
+            config.load();
+            return isPartialClone(config);
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot read configuration of " + gitDirectory, e);
+        }
+        catch (ConfigInvalidException e)
+        {
+            log.debug("Cannot read configuration of " + gitDirectory, e);
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static boolean isPartialClone(@NotNull final Config config)
+    {
+        return PROMISOR_REMOTE.equals(config.getString(CONFIG_SECTION_EXTENSIONS, null, CONFIG_KEY_PARTIAL_CLONE));
+    }
+
+    private static void configurePromisor(@NotNull final StoredConfig config) throws IOException
+    {
+        config.setBoolean(ConfigConstants.CONFIG_REMOTE_SECTION, PROMISOR_REMOTE, CONFIG_KEY_PROMISOR, true);
+        config.setString(CONFIG_SECTION_EXTENSIONS, null, CONFIG_KEY_PARTIAL_CLONE, PROMISOR_REMOTE);
+        config.save();
+    }
+}
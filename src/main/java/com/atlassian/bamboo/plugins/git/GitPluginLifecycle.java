@@ -0,0 +1,25 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Stops the background threads and long-lived processes of the plugin when it is disabled, upgraded or Bamboo shuts
+ * down, so that nothing keeps running with classes of a plugin version that is gone.
+ */
+public class GitPluginLifecycle implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(GitPluginLifecycle.class);
+
+    public void destroy()
+    {
+        log.info("Stopping background git tasks");
+        GitBatchCheckWorker.shutdown();
+        GitCacheManager.shutdown();
+        GitCacheMaintenance.shutdown();
+        GitBundles.shutdown();
+        GitTreeDiffer.shutdown();
+        GitSshSessionPool.shutdown();
+        GitSshProxyPool.shutdown();
+    }
+}
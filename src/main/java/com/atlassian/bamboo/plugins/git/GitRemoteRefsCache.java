@@ -0,0 +1,201 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+import com.atlassian.bamboo.utils.SystemProperty;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide, time-bounded cache of remote ref advertisements. All plans and plan branches polling the same remote
+ * repository with the same credentials share a single ref listing per polling window.
+ */
+class GitRemoteRefsCache
+{
+    private static final Logger log = Logger.getLogger(GitRemoteRefsCache.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int REFS_CACHE_TTL_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.refs.cache.ttl", "GIT_REFS_CACHE_TTL").getValue(30);
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static final ConcurrentMap<String, CachedRefs> cachedRefs = new ConcurrentHashMap<String, CachedRefs>();
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+    private static final AtomicLong lastEvictionTime = new AtomicLong();
+
+    interface RefsLoader
+    {
+        @NotNull
+        Map<String, Ref> load() throws IOException, RepositoryException;
+    }
+
+    private GitRemoteRefsCache()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Returns the refs advertised by the remote repository described by accessData. Refs are loaded with the given
+     * loader only if there is no listing younger than {@link #REFS_CACHE_TTL_SECONDS} for the same repository URL and
+     * credentials. Local repositories are never cached, as listing them does not involve any network traffic.
+     */
+    @NotNull
+    static Map<String, Ref> getRefs(@NotNull final GitRepository.GitRepositoryAccessData accessData, @NotNull final RefsLoader loader) throws IOException, RepositoryException
+    {
+        if (REFS_CACHE_TTL_SECONDS <= 0 || !isRemote(accessData.repositoryUrl))
+        {
+            return loader.load();
+        }
+
+        evictExpired(System.currentTimeMillis());
+        return getCachedRefs(accessData).get(loader);
+    }
+
+    /**
+     * Lists the refs of the remote repository again, regardless of the age of the shared listing, and replaces the
+     * shared listing with the result. Other plans keep using the shared listing while it is being reloaded and are
+     * never left without one, so a single plan that can't find its branch doesn't make everybody else list refs again.
+     */
+    @NotNull
+    static Map<String, Ref> reload(@NotNull final GitRepository.GitRepositoryAccessData accessData, @NotNull final RefsLoader loader) throws IOException, RepositoryException
+    {
+        if (REFS_CACHE_TTL_SECONDS <= 0 || !isRemote(accessData.repositoryUrl))
+        {
+            return loader.load();
+        }
+
+        final Map<String, Ref> refs = Collections.unmodifiableMap(new LinkedHashMap<String, Ref>(loader.load()));
+        getCachedRefs(accessData).update(refs);
+        return refs;
+    }
+
+    public static long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public static long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static CachedRefs getCachedRefs(@NotNull final GitRepository.GitRepositoryAccessData accessData)
+    {
+        final String key = calculateKey(accessData);
+        CachedRefs refs = cachedRefs.get(key);
+        if (refs == null)
+        {
+            final CachedRefs newRefs = new CachedRefs();
+            refs = cachedRefs.putIfAbsent(key, newRefs);
+            if (refs == null)
+            {
+                refs = newRefs;
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Drops listings of repositories nobody polled for longer than the TTL, at most once per TTL.
+     */
+    static void evictExpired(final long now)
+    {
+        final long ttl = TimeUnit.SECONDS.toMillis(REFS_CACHE_TTL_SECONDS);
+        final long lastEviction = lastEvictionTime.get();
+        if (now - lastEviction < ttl || !lastEvictionTime.compareAndSet(lastEviction, now))
+        {
+            return;
+        }
+        for (Map.Entry<String, CachedRefs> entry : cachedRefs.entrySet())
+        {
+            if (entry.getValue().isExpired(now, ttl))
+            {
+                cachedRefs.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    static int size()
+    {
+        return cachedRefs.size();
+    }
+
+    static String calculateKey(@NotNull final GitRepository.GitRepositoryAccessData accessData)
+    {
+        return GitCacheDirectory.calculateAggregateSha(accessData.repositoryUrl,
+                                                       accessData.authenticationType != null ? accessData.authenticationType.name() : null,
+                                                       accessData.username,
+                                                       accessData.password,
+                                                       accessData.sshKey,
+                                                       accessData.sshPassphrase);
+    }
+
+    private static boolean isRemote(final String repositoryUrl)
+    {
+        try
+        {
+            return new URIish(repositoryUrl).isRemote();
+        }
+        catch (URISyntaxException e)
+        {
+            return false;
+        }
+    }
+
+    private static class CachedRefs
+    {
+        private Map<String, Ref> refs;
+        private volatile long loadTime = System.currentTimeMillis();
+
+        /**
+         * Synchronized, so concurrent pollers of one repository wait for a single listing instead of issuing their own.
+         */
+        synchronized Map<String, Ref> get(@NotNull final RefsLoader loader) throws IOException, RepositoryException
+        {
+            final long now = System.currentTimeMillis();
+            if (refs != null && now - loadTime < TimeUnit.SECONDS.toMillis(REFS_CACHE_TTL_SECONDS))
+            {
+                hitCount.incrementAndGet();
+                return refs;
+            }
+
+            missCount.incrementAndGet();
+            refs = null; // never serve an expired listing, even if reloading it fails
+            refs = Collections.unmodifiableMap(new LinkedHashMap<String, Ref>(loader.load()));
+            loadTime = System.currentTimeMillis();
+            if (log.isDebugEnabled())
+            {
+                log.debug("Remote refs cache: " + hitCount.get() + " hits, " + missCount.get() + " misses");
+            }
+            return refs;
+        }
+
+        synchronized void update(@NotNull final Map<String, Ref> newRefs)
+        {
+            refs = newRefs;
+            loadTime = System.currentTimeMillis();
+        }
+
+        boolean isExpired(final long now, final long ttl)
+        {
+            return now - loadTime >= ttl;
+        }
+    }
+}
@@ -28,7 +28,6 @@ import com.atlassian.bamboo.ssh.ProxyRegistrationInfo;
 import com.atlassian.bamboo.ssh.SshProxyService;
 import com.atlassian.bamboo.utils.SystemProperty;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
-import com.atlassian.bamboo.utils.fage.Result;
 import com.atlassian.bamboo.v2.build.BuildContext;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChangesImpl;
@@ -93,6 +92,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
     private static final String REPOSITORY_GIT_SSH_PASSPHRASE = "repository.git.ssh.passphrase";
     private static final String REPOSITORY_GIT_USE_SHALLOW_CLONES = "repository.git.useShallowClones";
     private static final String REPOSITORY_GIT_USE_SUBMODULES = "repository.git.useSubmodules";
+    private static final String REPOSITORY_GIT_SPARSE_CHECKOUT_PATHS = "repository.git.sparseCheckoutPaths";
     private static final String REPOSITORY_GIT_MAVEN_PATH = "repository.git.maven.path";
     private static final String REPOSITORY_GIT_COMMAND_TIMEOUT = "repository.git.commandTimeout";
     private static final String REPOSITORY_GIT_VERBOSE_LOGS = "repository.git.verbose.logs";
@@ -105,6 +105,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
 
     private static final GitAuthenticationType defaultAuthenticationType = GitAuthenticationType.NONE;
     private static boolean USE_SHALLOW_CLONES = new SystemProperty(false, "atlassian.bamboo.git.useShallowClones", "ATLASSIAN_BAMBOO_GIT_USE_SHALLOW_CLONES").getValue(true);
+    private static final boolean REMOTE_AGENT_CACHE = new SystemProperty(false, "atlassian.bamboo.git.remoteAgentCache", "GIT_REMOTE_AGENT_CACHE").getValue(false);
 
     final static int DEFAULT_COMMAND_TIMEOUT_IN_MINUTES = 180;
 
@@ -124,6 +125,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         GitAuthenticationType authenticationType;
         boolean useShallowClones;
         boolean useSubmodules;
+        String sparseCheckoutPaths;
         int commandTimeout;
         boolean verboseLogs;
 
@@ -141,6 +143,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
             data.authenticationType = this.authenticationType;
             data.useShallowClones = this.useShallowClones;
             data.useSubmodules = this.useSubmodules;
+            data.sparseCheckoutPaths = this.sparseCheckoutPaths;
             data.commandTimeout = this.commandTimeout;
             data.verboseLogs = this.verboseLogs;
 
@@ -224,39 +227,40 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
             if (lastVcsRevisionKey == null)
             {
                 buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.ccRepositoryNeverChecked", Arrays.asList(targetRevision)));
-                try
-                {
-                    GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
-                    {
-                        public Void call() throws RepositoryException
-                        {
-                            boolean doShallowFetch = USE_SHALLOW_CLONES && substitutedAccessData.useShallowClones && !cacheDirectory.isDirectory();
-                            helper.fetch(cacheDirectory, doShallowFetch);
-                            return null;
-                        }
-                    });
-                }
-                catch (Exception e)
-                {
-                    throw new RepositoryException(e.getMessage(), e);
-                }
+                boolean doShallowFetch = USE_SHALLOW_CLONES && substitutedAccessData.useShallowClones && !cacheDirectory.isDirectory();
+                GitFetchCoalescer.fetch(helper, cacheDirectory, doShallowFetch, targetRevision);
                 return new BuildRepositoryChangesImpl(targetRevision);
             }
 
-            final BuildRepositoryChanges buildChanges = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Supplier<BuildRepositoryChanges>()
+            BuildRepositoryChanges buildChanges;
+            final long recoveryCount = GitCacheDirectory.getRecoveryCount(cacheDirectory);
+            try
             {
-                public BuildRepositoryChanges get()
+                GitFetchCoalescer.fetch(helper, cacheDirectory, false, targetRevision);
+                buildChanges = GitCacheDirectory.getCacheReadLock(cacheDirectory).withLock(new Callable<BuildRepositoryChanges>()
                 {
-                    try
+                    public BuildRepositoryChanges call() throws Exception
                     {
-                        helper.fetch(cacheDirectory, false);
                         return helper.extractCommits(cacheDirectory, lastVcsRevisionKey, targetRevision);
                     }
-                    catch (Exception e) // not just RepositoryException - see HandlingSwitchingRepositoriesToUnrelatedOnesTest.testCollectChangesWithUnrelatedPreviousRevision
+                });
+            }
+            catch (final Exception e) // not just RepositoryException - see HandlingSwitchingRepositoriesToUnrelatedOnesTest.testCollectChangesWithUnrelatedPreviousRevision
+            {
+                buildChanges = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Supplier<BuildRepositoryChanges>()
+                {
+                    public BuildRepositoryChanges get()
                     {
                         try
                         {
+                            if (GitCacheDirectory.getRecoveryCount(cacheDirectory) != recoveryCount)
+                            {
+                                // another build failing on the same fetch has fetched the cache again already
+                                log.info("Git cache " + cacheDirectory + " has been recovered by another build, not removing it again");
+                                return helper.extractCommits(cacheDirectory, lastVcsRevisionKey, targetRevision);
+                            }
                             rethrowOrRemoveDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.ccRecover.failedToCollectChangesets");
+                            GitCacheDirectory.recordRecovery(cacheDirectory);
                             buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.ccRecover.cleanedCacheDirectory", Arrays.asList(cacheDirectory)));
                             helper.fetch(cacheDirectory, false);
                             buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.ccRecover.fetchedRemoteRepository", Arrays.asList(cacheDirectory)));
@@ -270,8 +274,8 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                             return null;
                         }
                     }
-                }
-            });
+                });
+            }
 
             if (buildChanges != null && !buildChanges.getChanges().isEmpty())
             {
@@ -315,28 +319,25 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
             final String targetRevision = vcsRevisionKey != null ? vcsRevisionKey : helper.obtainLatestRevision();
             final String previousRevision = helper.getRevisionIfExists(sourceDirectory, Constants.HEAD);
 
-            if (isOnLocalAgent())
+            if (isUsingCacheDirectory())
             {
                 final File cacheDirectory = getCacheDirectory(substitutedAccessData);
-                return GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<String>()
+                fetchCacheWithRecovery(helper, buildLogger, cacheDirectory, doShallowFetch, targetRevision);
+
+                // checkout only reads the cache (through alternates), so builds of the same repository can do it concurrently
+                return GitCacheDirectory.getCacheReadLock(cacheDirectory).withLock(new Callable<String>()
                 {
                     public String call() throws Exception
                     {
                         try
                         {
-                            helper.fetch(cacheDirectory, doShallowFetch);
-                            helper.checkRevisionExistsInCacheRepository(cacheDirectory, targetRevision);
-                        }
-                        catch (Exception e)
-                        {
-                            rethrowOrRemoveDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.rsRecover.failedToFetchCache");
-                            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.rsRecover.cleanedCacheDirectory", Arrays.asList(cacheDirectory)));
-                            helper.fetch(cacheDirectory, false);
-                            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.rsRecover.fetchingCacheCompleted", Arrays.asList(cacheDirectory)));
-                        }
-
-                        try
-                        {
+                            if (previousRevision == null && !substitutedAccessData.useSubmodules && GitWorkspacePopulator.isEnabled()
+                                && !(GitWorktree.WORKTREE_WORKSPACES && helper instanceof NativeGitOperationHelper)
+                                && GitSparseCheckout.getPaths(substitutedAccessData.sparseCheckoutPaths).isEmpty())
+                            {
+                                buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.populatingWorkspace", Arrays.asList(sourceDirectory, targetRevision)));
+                                GitWorkspacePopulator.populate(helper, cacheDirectory, sourceDirectory, targetRevision);
+                            }
                             return helper.checkout(cacheDirectory, sourceDirectory, targetRevision, previousRevision);
                         }
                         catch (Exception e)
@@ -349,9 +350,8 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                         }
                     }
                 });
-
             }
-            else //isOnRemoteAgent
+            else //isOnRemoteAgent without a cache
             {
                 try
                 {
@@ -380,11 +380,97 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         }
     }
 
+    /**
+     * Fetches targetRevision into the cache directory shared by builds on this agent, unless it is already there. If
+     * the cache turns out to be broken it is removed and fetched again from scratch.
+     */
+    private void fetchCacheWithRecovery(final GitOperationHelper helper, final BuildLogger buildLogger, final File cacheDirectory, final boolean doShallowFetch, final String targetRevision) throws Exception
+    {
+        // the revision has usually been fetched already by change detection, don't go to the remote repository for it again
+        final boolean revisionInCache = GitCacheDirectory.getCacheReadLock(cacheDirectory).withLock(new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                return helper.isRevisionInCacheRepository(cacheDirectory, targetRevision);
+            }
+        });
+        if (revisionInCache)
+        {
+            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.revisionAlreadyInCache", Arrays.asList(targetRevision, cacheDirectory)));
+            return;
+        }
+
+        if (!doShallowFetch && !isOnLocalAgent() && GitCacheMirror.isEnabled() && fetchCacheFromMirror(helper, cacheDirectory, targetRevision))
+        {
+            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.fetchedFromCacheMirror", Arrays.asList(targetRevision, cacheDirectory)));
+            return;
+        }
+
+        final long recoveryCount = GitCacheDirectory.getRecoveryCount(cacheDirectory);
+        try
+        {
+            GitFetchCoalescer.fetch(helper, cacheDirectory, doShallowFetch, targetRevision);
+            GitCacheDirectory.getCacheReadLock(cacheDirectory).withLock(new Callable<Boolean>()
+            {
+                public Boolean call() throws Exception
+                {
+                    return helper.checkRevisionExistsInCacheRepository(cacheDirectory, targetRevision);
+                }
+            });
+        }
+        catch (final Exception e)
+        {
+            GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    if (GitCacheDirectory.getRecoveryCount(cacheDirectory) != recoveryCount && helper.isRevisionInCacheRepository(cacheDirectory, targetRevision))
+                    {
+                        // another build failing on the same fetch has fetched the cache again already
+                        log.info("Git cache " + cacheDirectory + " has been recovered by another build, not removing it again");
+                        return null;
+                    }
+                    rethrowOrRemoveDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.rsRecover.failedToFetchCache");
+                    GitCacheDirectory.recordRecovery(cacheDirectory);
+                    buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.rsRecover.cleanedCacheDirectory", Arrays.asList(cacheDirectory)));
+                    helper.fetch(cacheDirectory, false);
+                    buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.rsRecover.fetchingCacheCompleted", Arrays.asList(cacheDirectory)));
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Fetches targetRevision into the cache of a remote agent from the cache of the server, see {@link GitCacheMirror}.
+     *
+     * @return true if the cache doesn't need fetching from the origin repository anymore
+     */
+    private boolean fetchCacheFromMirror(final GitOperationHelper helper, final File cacheDirectory, final String targetRevision) throws Exception
+    {
+        return GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                return helper.isRevisionInCacheRepository(cacheDirectory, targetRevision)
+                       || GitCacheMirror.fetch(cacheDirectory, helper.accessData, GitCacheMirror.MIRROR_LOCATION, targetRevision, textProvider);
+            }
+        });
+    }
+
     private boolean isOnLocalAgent()
     {
         return !(buildDirectoryManager instanceof RemoteBuildDirectoryManager);
     }
 
+    /**
+     * Local agents always check out through the cache directory, remote agents only if they keep caches of their own.
+     */
+    private boolean isUsingCacheDirectory()
+    {
+        return isOnLocalAgent() || REMOTE_AGENT_CACHE;
+    }
+
     @NotNull
     @Override
     public List<VcsBranch> getOpenBranches() throws RepositoryException
@@ -458,29 +544,9 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
 
         try
         {
-            if (isOnLocalAgent())
+            if (isUsingCacheDirectory())
             {
-                GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
-                {
-                    @Override
-                    public Void call() throws Exception
-                    {
-                        try
-                        {
-                            connector.fetch(cacheDirectory, doShallowFetch);
-                            connector.checkRevisionExistsInCacheRepository(cacheDirectory, targetRevision);
-                        }
-                        catch (Exception e)
-                        {
-                            rethrowOrRemoveDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.rsRecover.failedToFetchCache");
-                            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.rsRecover.cleanedCacheDirectory", Arrays.asList(cacheDirectory)));
-                            connector.fetch(cacheDirectory, false);
-                            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.rsRecover.fetchingCacheCompleted", Arrays.asList(cacheDirectory)));
-                        }
-                        return null;
-                    }
-                });
-
+                fetchCacheWithRecovery(connector, buildLogger, cacheDirectory, doShallowFetch, targetRevision);
             }
             else
             {
@@ -501,7 +567,30 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
             throw new RepositoryException(textProvider.getText("repository.git.messages.runtimeException"), e);
         }
 
-        return connector.merge(workspaceDir, targetRevision, branchIntegrationHelper.getCommitterName(this), branchIntegrationHelper.getCommitterEmail(this));
+        final String committerName = branchIntegrationHelper.getCommitterName(this);
+        final String committerEmail = branchIntegrationHelper.getCommitterEmail(this);
+        if (isUsingCacheDirectory())
+        {
+            try
+            {
+                return GitCacheDirectory.getCacheReadLock(cacheDirectory).withLock(new Callable<Boolean>()
+                {
+                    public Boolean call() throws Exception
+                    {
+                        return connector.merge(workspaceDir, targetRevision, committerName, committerEmail);
+                    }
+                });
+            }
+            catch (RepositoryException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new RepositoryException(textProvider.getText("repository.git.messages.runtimeException"), e);
+            }
+        }
+        return connector.merge(workspaceDir, targetRevision, committerName, committerEmail);
     }
 
     @Override
@@ -528,23 +617,26 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
 
         final File cacheDirectory = getCacheDirectory();
         log.debug("Fetching remote repository");
-        Result<RepositoryException, CommitContext> result = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Supplier<Result<RepositoryException, CommitContext>>()
+        try
         {
-            public Result<RepositoryException, CommitContext> get()
+            boolean doShallowFetch = USE_SHALLOW_CLONES && substitutedAccessData.useShallowClones && !cacheDirectory.isDirectory();
+            GitFetchCoalescer.fetch(helper, cacheDirectory, doShallowFetch, targetRevision);
+            return GitCacheDirectory.getCacheReadLock(cacheDirectory).withLock(new Callable<CommitContext>()
             {
-                boolean doShallowFetch = USE_SHALLOW_CLONES && substitutedAccessData.useShallowClones && !cacheDirectory.isDirectory();
-                try
-                {
-                    helper.fetch(cacheDirectory, doShallowFetch);
-                    return Result.result(helper.getCommit(cacheDirectory, targetRevision));
-                }
-                catch (RepositoryException e)
+                public CommitContext call() throws Exception
                 {
-                    return Result.exception(e);
+                    return helper.getCommit(cacheDirectory, targetRevision);
                 }
-            }
-        });
-        return result.getResultThrowException();
+            });
+        }
+        catch (RepositoryException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RepositoryException(textProvider.getText("repository.git.messages.runtimeException"), e);
+        }
     }
 
     @Override
@@ -554,6 +646,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         buildConfiguration.clearTree(REPOSITORY_GIT_VERBOSE_LOGS);
         buildConfiguration.setProperty(REPOSITORY_GIT_USE_SHALLOW_CLONES, true);
         buildConfiguration.clearTree(REPOSITORY_GIT_USE_SUBMODULES);
+        buildConfiguration.clearTree(REPOSITORY_GIT_SPARSE_CHECKOUT_PATHS);
     }
 
     public void prepareConfigObject(@NotNull BuildConfiguration buildConfiguration)
@@ -605,6 +698,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         accessData.authenticationType = safeParseAuthenticationType(config.getString(REPOSITORY_GIT_AUTHENTICATION_TYPE));
         accessData.useShallowClones = config.getBoolean(REPOSITORY_GIT_USE_SHALLOW_CLONES);
         accessData.useSubmodules = config.getBoolean(REPOSITORY_GIT_USE_SUBMODULES, false);
+        accessData.sparseCheckoutPaths = config.getString(REPOSITORY_GIT_SPARSE_CHECKOUT_PATHS, "");
         accessData.commandTimeout = config.getInt(REPOSITORY_GIT_COMMAND_TIMEOUT, DEFAULT_COMMAND_TIMEOUT_IN_MINUTES);
         accessData.verboseLogs = config.getBoolean(REPOSITORY_GIT_VERBOSE_LOGS, false);
 
@@ -625,6 +719,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         configuration.setProperty(REPOSITORY_GIT_AUTHENTICATION_TYPE, accessData.authenticationType != null ? accessData.authenticationType.name() : null);
         configuration.setProperty(REPOSITORY_GIT_USE_SHALLOW_CLONES, accessData.useShallowClones);
         configuration.setProperty(REPOSITORY_GIT_USE_SUBMODULES, accessData.useSubmodules);
+        configuration.setProperty(REPOSITORY_GIT_SPARSE_CHECKOUT_PATHS, accessData.sparseCheckoutPaths);
         configuration.setProperty(REPOSITORY_GIT_COMMAND_TIMEOUT, accessData.commandTimeout);
         configuration.setProperty(REPOSITORY_GIT_VERBOSE_LOGS, accessData.verboseLogs);
         return configuration;
@@ -767,6 +862,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         substituted.authenticationType = accessData.authenticationType;
         substituted.useShallowClones = accessData.useShallowClones;
         substituted.useSubmodules = accessData.useSubmodules;
+        substituted.sparseCheckoutPaths = substituteString(accessData.sparseCheckoutPaths);
         substituted.commandTimeout = accessData.commandTimeout;
         substituted.verboseLogs = accessData.verboseLogs;
         return substituted;
@@ -789,6 +885,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
 
         // This section does not really work on Windows (files open by antivirus software or leaked by jgit - and it does leak handles - will remain on the harddrive),
         // so it should be entered if we know that the cache has to be blown away
+        GitBatchCheckWorker.closeWorkers(directory);
         FileUtils.deleteQuietly(directory);
 
         final String[] filesInDirectory = directory.list();
@@ -810,6 +907,11 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         return accessData.useSubmodules;
     }
 
+    public String getSparseCheckoutPaths()
+    {
+        return accessData.sparseCheckoutPaths;
+    }
+
     public String getRepositoryUrl()
     {
         return accessData.repositoryUrl;
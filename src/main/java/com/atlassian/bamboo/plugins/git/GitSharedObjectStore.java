@@ -0,0 +1,178 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Object store shared by the shallow caches of all branches of a repository. Each branch cache keeps its own refs and
+ * <code>shallow</code> file, but its objects are moved into the store after every fetch and reached through
+ * <code>objects/info/alternates</code>, so that branches don't keep separate copies of mostly identical trees.
+ * <p/>
+ * The store is a bare repository without refs. Objects shared by several branches end up in several packs at first;
+ * {@link GitCacheMaintenance} repacks the store, keeping every object but only one copy of it. Nothing is ever pruned
+ * from the store, it goes away as a whole when evicted by {@link GitCacheManager}.
+ */
+class GitSharedObjectStore
+{
+    private static final Logger log = Logger.getLogger(GitSharedObjectStore.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final Pattern LOOSE_OBJECT_DIRECTORY = Pattern.compile("[0-9a-f]{2}");
+
+    // .idx goes last: git and JGit only see a pack once its index is in place
+    private static final List<String> PACK_FILE_EXTENSIONS = Arrays.asList(".pack", ".bitmap", ".promisor", ".idx");
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private GitSharedObjectStore()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Makes objects of store visible in cacheDirectory and moves there the objects cacheDirectory has fetched. To be
+     * called under the exclusive lock of cacheDirectory.
+     */
+    static void addObjects(@NotNull final File cacheDirectory, @NotNull final File store) throws Exception
+    {
+        final File cacheObjectDirectory = new File(new File(cacheDirectory, Constants.DOT_GIT), "objects");
+        if (!cacheObjectDirectory.isDirectory())
+        {
+            return;
+        }
+
+        GitCacheDirectory.getCacheLock(store).withLock(new Callable<Void>()
+        {
+            public Void call() throws IOException
+            {
+                final File storeObjectDirectory = new File(store, "objects");
+                if (!storeObjectDirectory.isDirectory())
+                {
+                    final FileRepository storeRepository = new FileRepository(store);
+                    storeRepository.create(true);
+                    storeRepository.close();
+                }
+
+                // objects have to be reachable from the cache before they are moved out of it
+                if (addAlternate(cacheObjectDirectory, storeObjectDirectory))
+                {
+                    GitBatchCheckWorker.closeWorkers(cacheDirectory); // alternates are read on startup only
+                }
+                final int moved = moveObjects(cacheObjectDirectory, storeObjectDirectory);
+                if (moved > 0)
+                {
+                    log.debug("Moved " + moved + " object files from " + cacheDirectory + " to shared object store " + store);
+                }
+                return null;
+            }
+        });
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * @return true if the alternate had to be added
+     */
+    static boolean addAlternate(@NotNull final File objectDirectory, @NotNull final File alternateObjectDirectory) throws IOException
+    {
+        final File alternatesFile = new File(objectDirectory, "info/alternates");
+        final String alternate = alternateObjectDirectory.getAbsolutePath();
+        final List<String> alternates = new ArrayList<String>();
+        if (alternatesFile.exists())
+        {
+            //noinspection unchecked
+            alternates.addAll(FileUtils.readLines(alternatesFile));
+        }
+        if (alternates.contains(alternate))
+        {
+            return false;
+        }
+        alternates.add(alternate);
+        FileUtils.writeLines(alternatesFile, alternates, "\n");
+        return true;
+    }
+
+    private static int moveObjects(@NotNull final File from, @NotNull final File to) throws IOException
+    {
+        int moved = 0;
+        final File[] looseObjectDirectories = from.listFiles();
+        if (looseObjectDirectories != null)
+        {
+            for (File looseObjectDirectory : looseObjectDirectories)
+            {
+                if (LOOSE_OBJECT_DIRECTORY.matcher(looseObjectDirectory.getName()).matches() && looseObjectDirectory.isDirectory())
+                {
+                    final File[] looseObjects = looseObjectDirectory.listFiles();
+                    for (File looseObject : looseObjects != null ? looseObjects : new File[0])
+                    {
+                        moved += moveFile(looseObject, new File(new File(to, looseObjectDirectory.getName()), looseObject.getName())) ? 1 : 0;
+                    }
+                }
+            }
+        }
+
+        final File[] packs = new File(from, "pack").listFiles();
+        if (packs != null)
+        {
+            for (File pack : packs)
+            {
+                final String name = pack.getName();
+                final String baseName = StringUtils.removeEnd(name, ".pack");
+                if (name.equals(baseName) || new File(pack.getParentFile(), baseName + ".keep").exists())
+                {
+                    continue;
+                }
+                final boolean alreadyInStore = new File(new File(to, "pack"), baseName + ".idx").exists();
+                final List<String> extensions = new ArrayList<String>(PACK_FILE_EXTENSIONS);
+                if (alreadyInStore)
+                {
+                    Collections.reverse(extensions); // the index goes first, not to leave it without its pack
+                }
+                for (String extension : extensions)
+                {
+                    final File packFile = new File(pack.getParentFile(), baseName + extension);
+                    if (packFile.exists())
+                    {
+                        moved += moveFile(packFile, new File(new File(to, "pack"), packFile.getName())) ? 1 : 0;
+                    }
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Object files are named after their content, so if the target already exists the source is just a duplicate.
+     */
+    private static boolean moveFile(@NotNull final File source, @NotNull final File target) throws IOException
+    {
+        if (target.exists())
+        {
+            FileUtils.forceDelete(source);
+            return false;
+        }
+        FileUtils.forceMkdir(target.getParentFile());
+        if (!source.renameTo(target))
+        {
+            // e.g. the file is open on Windows; it stays in the cache and is still found there
+            log.debug("Cannot move " + source + " to " + target);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sparse checkouts: only the configured paths (directories or files, relative to the root of the repository) of a
+ * revision are written to the working copy. Only native git does it, through <code>core.sparseCheckout</code> and
+ * <code>info/sparse-checkout</code>, which mark the skipped index entries skip-worktree. JGit can't set that flag, and
+ * an index without the skipped paths would show them as deleted, so JGit always checks out the whole tree, also over a
+ * working copy native git has checked out sparsely.
+ * <p/>
+ * Plan include/exclude patterns can't be used for that: they are regular expressions matched against changed files,
+ * which a sparse checkout can't evaluate without walking the whole tree anyway.
+ */
+class GitSparseCheckout
+{
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final String SPARSE_CHECKOUT_FILE = "info/sparse-checkout";
+    private static final String CONFIG_KEY_SPARSE_CHECKOUT = "sparsecheckout";
+    private static final String ALL_PATHS = "/*";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private GitSparseCheckout()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @return normalized paths, one per line of sparseCheckoutPaths; empty if the whole tree should be checked out
+     */
+    @NotNull
+    static List<String> getPaths(@Nullable final String sparseCheckoutPaths)
+    {
+        if (StringUtils.isBlank(sparseCheckoutPaths))
+        {
+            return Collections.emptyList();
+        }
+        final List<String> paths = new ArrayList<String>();
+        for (String line : StringUtils.split(sparseCheckoutPaths, "\r\n"))
+        {
+            final String path = StringUtils.strip(StringUtils.replaceChars(line.trim(), '\\', '/'), "/");
+            if (StringUtils.isNotEmpty(path) && !path.startsWith("#") && !paths.contains(path))
+            {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Sets up the working copy to have only paths checked out on next checkout. With no paths a previously sparse
+     * working copy is set up to have the whole tree checked out again; {@link #disableAfterFullCheckout(FileRepository)}
+     * has to be called after that checkout.
+     *
+     * @return true if the working copy was sparse before
+     */
+    static boolean configure(@NotNull final FileRepository localRepository, @NotNull final List<String> paths) throws IOException
+    {
+        final File sparseCheckoutFile = new File(localRepository.getDirectory(), SPARSE_CHECKOUT_FILE);
+        final StoredConfig config = localRepository.getConfig();
+        final boolean enabled = config.getBoolean(ConfigConstants.CONFIG_CORE_SECTION, CONFIG_KEY_SPARSE_CHECKOUT, false);
+        if (paths.isEmpty() && !enabled)
+        {
+            return false;
+        }
+
+        final List<String> patterns = new ArrayList<String>();
+        for (String path : paths)
+        {
+            // anchored and without a trailing slash, so that both files and directories match
+            patterns.add("/" + path);
+        }
+        // skipped paths are only brought back by a checkout done with sparse checkout still enabled
+        FileUtils.writeLines(sparseCheckoutFile, patterns.isEmpty() ? Collections.singletonList(ALL_PATHS) : patterns, "\n");
+        if (!enabled)
+        {
+            config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, CONFIG_KEY_SPARSE_CHECKOUT, true);
+            config.save();
+        }
+        return enabled;
+    }
+
+    static void disableAfterFullCheckout(@NotNull final FileRepository localRepository) throws IOException
+    {
+        final StoredConfig config = localRepository.getConfig();
+        if (config.getBoolean(ConfigConstants.CONFIG_CORE_SECTION, CONFIG_KEY_SPARSE_CHECKOUT, false))
+        {
+            config.unset(ConfigConstants.CONFIG_CORE_SECTION, null, CONFIG_KEY_SPARSE_CHECKOUT);
+            config.save();
+            FileUtils.deleteQuietly(new File(localRepository.getDirectory(), SPARSE_CHECKOUT_FILE));
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.ssh.ProxyErrorReceiver;
+import com.atlassian.bamboo.ssh.ProxyException;
+import com.atlassian.bamboo.ssh.ProxyRegistrationInfo;
+import com.atlassian.bamboo.ssh.SshProxyService;
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reference counted SSH proxy registrations of native git commands, keyed by remote address, user and credentials, so
+ * that consecutive commands against the same remote don't each decode the key and register a proxy of their own.
+ * <p/>
+ * A registration is shared by all commands using it at the same time and unregistered once nobody has used it for
+ * {@link #IDLE_TIMEOUT_SECONDS}. Proxy errors are reported to the commands currently using the registration.
+ * <p/>
+ * Every use is a lease which expires after the command timeout, as no command may run longer than that. Leases which
+ * haven't been given back by then are released by the eviction thread, so that a leaked registration can't keep its
+ * proxy registered forever.
+ */
+class GitSshProxyPool
+{
+    private static final Logger log = Logger.getLogger(GitSshProxyPool.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int IDLE_TIMEOUT_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.ssh.proxy.idle", "GIT_SSH_PROXY_IDLE").getValue(60);
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    // guarded by pool, as are evictionScheduled, executor and the fields of PooledProxy
+    private static final Map<String, PooledProxy> pool = new HashMap<String, PooledProxy>();
+    // weak keys, as registrations of expired leases are kept until their leaking users are gone
+    private static final Map<ProxyRegistrationInfo, PooledProxy> registrations = new MapMaker().weakKeys().makeMap();
+    private static boolean evictionScheduled;
+    private static ScheduledExecutorService executor;
+
+    private static final AtomicLong registrationCount = new AtomicLong();
+    private static final AtomicLong reuseCount = new AtomicLong();
+
+    interface Registrar
+    {
+        /**
+         * Registers a new proxy reporting its errors to errorReceiver.
+         */
+        @NotNull
+        ProxyRegistrationInfo register(@NotNull ProxyErrorReceiver errorReceiver) throws IOException, ProxyException;
+    }
+
+    private static class PooledProxy
+    {
+        final String key;
+        final SshProxyService sshProxyService;
+        final ForwardingErrorReceiver errorReceiver;
+        final List<Lease> leases = new ArrayList<Lease>();
+        ProxyRegistrationInfo registrationInfo;
+        long lastUsed = System.currentTimeMillis();
+        boolean leaked;
+
+        PooledProxy(@NotNull final String key, @NotNull final SshProxyService sshProxyService, @NotNull final ForwardingErrorReceiver errorReceiver)
+        {
+            this.key = key;
+            this.sshProxyService = sshProxyService;
+            this.errorReceiver = errorReceiver;
+        }
+    }
+
+    private static class Lease
+    {
+        final ProxyErrorReceiver errorReceiver;
+        final long expires;
+
+        Lease(@NotNull final ProxyErrorReceiver errorReceiver, final long expires)
+        {
+            this.errorReceiver = errorReceiver;
+            this.expires = expires;
+        }
+    }
+
+    private GitSshProxyPool()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    static boolean isEnabled()
+    {
+        return IDLE_TIMEOUT_SECONDS > 0;
+    }
+
+    /**
+     * Returns the registration pooled under key, or a new one made by registrar. Each call has to be matched by a call
+     * to {@link #unregister(SshProxyService, ProxyRegistrationInfo, ProxyErrorReceiver)}, or the registration is
+     * released after leaseTimeout anyway.
+     *
+     * @param errorReceiver receives errors of the proxy until the registration is given back
+     * @param leaseTimeout milliseconds after which the registration is considered leaked
+     */
+    @NotNull
+    static ProxyRegistrationInfo register(@NotNull final SshProxyService sshProxyService,
+                                          @NotNull final String key,
+                                          @NotNull final ProxyErrorReceiver errorReceiver,
+                                          final long leaseTimeout,
+                                          @NotNull final Registrar registrar) throws IOException, ProxyException
+    {
+        final String poolKey = System.identityHashCode(sshProxyService) + "/" + key;
+        PooledProxy pooledProxy = null;
+        if (isEnabled())
+        {
+            synchronized (pool)
+            {
+                final Lease lease = new Lease(errorReceiver, System.currentTimeMillis() + leaseTimeout);
+                final PooledProxy existing = pool.get(poolKey);
+                if (existing == null)
+                {
+                    pooledProxy = new PooledProxy(poolKey, sshProxyService, new ForwardingErrorReceiver());
+                    pooledProxy.leases.add(lease);
+                    pooledProxy.errorReceiver.add(errorReceiver);
+                    pool.put(poolKey, pooledProxy);
+                    if (!evictionScheduled)
+                    {
+                        // leases which are never given back have to expire even if the proxy never becomes idle
+                        evictionScheduled = true;
+                        scheduleEviction();
+                    }
+                }
+                else if (existing.sshProxyService == sshProxyService && existing.registrationInfo != null)
+                {
+                    existing.leases.add(lease);
+                    existing.errorReceiver.add(errorReceiver);
+                    reuseCount.incrementAndGet();
+                    return existing.registrationInfo;
+                }
+                // otherwise the pooled proxy is still being registered, a proxy of its own is quicker than waiting
+            }
+        }
+
+        if (pooledProxy == null)
+        {
+            final ProxyRegistrationInfo registrationInfo = registrar.register(errorReceiver);
+            registrationCount.incrementAndGet();
+            return registrationInfo;
+        }
+
+        ProxyRegistrationInfo registrationInfo = null;
+        try
+        {
+            registrationInfo = registrar.register(pooledProxy.errorReceiver);
+            registrationCount.incrementAndGet();
+            return registrationInfo;
+        }
+        finally
+        {
+            synchronized (pool)
+            {
+                if (registrationInfo != null)
+                {
+                    pooledProxy.registrationInfo = registrationInfo;
+                    registrations.put(registrationInfo, pooledProxy);
+                }
+                else
+                {
+                    pool.remove(poolKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives back a registration obtained from
+     * {@link #register(SshProxyService, String, ProxyErrorReceiver, long, Registrar)}. Registrations which aren't pooled
+     * are unregistered right away, leases which have already expired are ignored.
+     */
+    static void unregister(@NotNull final SshProxyService sshProxyService,
+                           @Nullable final ProxyRegistrationInfo registrationInfo,
+                           @NotNull final ProxyErrorReceiver errorReceiver)
+    {
+        synchronized (pool)
+        {
+            final PooledProxy pooledProxy = registrationInfo != null ? registrations.get(registrationInfo) : null;
+            if (pooledProxy != null)
+            {
+                if (!removeLease(pooledProxy, errorReceiver))
+                {
+                    log.debug("SSH proxy lease for " + pooledProxy.key + " given back after it expired");
+                    return;
+                }
+                pooledProxy.lastUsed = System.currentTimeMillis();
+                if (pool.get(pooledProxy.key) != pooledProxy)
+                {
+                    // the pool has been shut down while the proxy was in use, the last user unregisters it
+                    if (!pooledProxy.leases.isEmpty())
+                    {
+                        return;
+                    }
+                    registrations.remove(registrationInfo);
+                }
+                else
+                {
+                    if (pooledProxy.leases.isEmpty() && !evictionScheduled)
+                    {
+                        evictionScheduled = true;
+                        scheduleEviction();
+                    }
+                    return;
+                }
+            }
+        }
+        sshProxyService.unregister(registrationInfo);
+    }
+
+    static long getRegistrationCount()
+    {
+        return registrationCount.get();
+    }
+
+    static long getReuseCount()
+    {
+        return reuseCount.get();
+    }
+
+    /**
+     * Releases leases which expired before now and unregisters proxies which nobody has used since
+     * {@link #IDLE_TIMEOUT_SECONDS} before now.
+     */
+    static void evictIdle(final long now)
+    {
+        final List<PooledProxy> evicted = new ArrayList<PooledProxy>();
+        synchronized (pool)
+        {
+            for (Iterator<PooledProxy> it = pool.values().iterator(); it.hasNext(); )
+            {
+                final PooledProxy pooledProxy = it.next();
+                for (Iterator<Lease> leases = pooledProxy.leases.iterator(); leases.hasNext(); )
+                {
+                    final Lease lease = leases.next();
+                    if (lease.expires <= now)
+                    {
+                        log.warn("SSH proxy lease for " + pooledProxy.key + " has not been given back in time, releasing it");
+                        leases.remove();
+                        pooledProxy.errorReceiver.remove(lease.errorReceiver);
+                        pooledProxy.lastUsed = Math.max(pooledProxy.lastUsed, lease.expires);
+                        pooledProxy.leaked = true;
+                    }
+                }
+                if (pooledProxy.leases.isEmpty() && now - pooledProxy.lastUsed >= TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS))
+                {
+                    it.remove();
+                    if (!pooledProxy.leaked)
+                    {
+                        // a late unregister of an expired lease has to find the proxy to ignore it
+                        registrations.remove(pooledProxy.registrationInfo);
+                    }
+                    evicted.add(pooledProxy);
+                }
+            }
+        }
+        for (PooledProxy pooledProxy : evicted)
+        {
+            log.debug("Unregistering SSH proxy for " + pooledProxy.key + ", idle for " + IDLE_TIMEOUT_SECONDS + " seconds");
+            pooledProxy.sshProxyService.unregister(pooledProxy.registrationInfo);
+        }
+    }
+
+    /**
+     * Unregisters all idle proxies and stops the eviction thread, see {@link GitPluginLifecycle}. Proxies in use are
+     * unregistered once given back by their last user.
+     */
+    static void shutdown()
+    {
+        final List<PooledProxy> idle = new ArrayList<PooledProxy>();
+        synchronized (pool)
+        {
+            for (PooledProxy pooledProxy : pool.values())
+            {
+                if (pooledProxy.leases.isEmpty() && pooledProxy.registrationInfo != null)
+                {
+                    registrations.remove(pooledProxy.registrationInfo);
+                    idle.add(pooledProxy);
+                }
+            }
+            pool.clear();
+            evictionScheduled = false;
+            if (executor != null)
+            {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        for (PooledProxy pooledProxy : idle)
+        {
+            pooledProxy.sshProxyService.unregister(pooledProxy.registrationInfo);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * Removes the first lease of errorReceiver, to be called while holding the pool lock.
+     *
+     * @return false if there is none, i.e. it has expired already
+     */
+    private static boolean removeLease(@NotNull final PooledProxy pooledProxy, @NotNull final ProxyErrorReceiver errorReceiver)
+    {
+        for (Iterator<Lease> it = pooledProxy.leases.iterator(); it.hasNext(); )
+        {
+            if (it.next().errorReceiver == errorReceiver)
+            {
+                it.remove();
+                pooledProxy.errorReceiver.remove(errorReceiver);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * To be called while holding the pool lock.
+     */
+    private static void scheduleEviction()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("bamboo-git-ssh-proxy-evictor")
+                    .setDaemon(true)
+                    .build());
+        }
+        executor.schedule(new Runnable()
+        {
+            public void run()
+            {
+                evictIdle(System.currentTimeMillis());
+                synchronized (pool)
+                {
+                    // registrations given back now are released without scheduling, as this eviction is still in progress
+                    if (!pool.isEmpty())
+                    {
+                        scheduleEviction();
+                    }
+                    else
+                    {
+                        evictionScheduled = false;
+                    }
+                }
+            }
+        }, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reports errors of a pooled proxy to the commands using it at the moment.
+     */
+    private static class ForwardingErrorReceiver implements ProxyErrorReceiver
+    {
+        private final List<ProxyErrorReceiver> receivers = new CopyOnWriteArrayList<ProxyErrorReceiver>();
+
+        void add(@NotNull final ProxyErrorReceiver receiver)
+        {
+            receivers.add(receiver);
+        }
+
+        void remove(@NotNull final ProxyErrorReceiver receiver)
+        {
+            receivers.remove(receiver);
+        }
+
+        public void reportProxyError(String message, Throwable exception)
+        {
+            if (receivers.isEmpty())
+            {
+                log.warn("SSH proxy error: " + message, exception);
+            }
+            for (ProxyErrorReceiver receiver : receivers)
+            {
+                receiver.reportProxyError(message, exception);
+            }
+        }
+    }
+}
@@ -4,20 +4,58 @@ import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.OpenSshConfig;
 import org.eclipse.jgit.transport.JschConfigSessionFactory;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.util.FS;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class GitSshSessionFactory extends JschConfigSessionFactory
 {
     final private String key;
     final private String passphrase;
+    final private String password;
 
-    GitSshSessionFactory(@Nullable final String key, @Nullable final String passphrase)
+    // session created by the last call to getSession, which is synchronized
+    private Session createdSession;
+
+    /**
+     * @param password used for password authentication, only to tell pooled sessions of different credentials apart
+     */
+    GitSshSessionFactory(@Nullable final String key, @Nullable final String passphrase, @Nullable final String password)
     {
         this.key = key;
         this.passphrase = passphrase;
+        this.password = password;
+    }
+
+    @Override
+    public synchronized RemoteSession getSession(final URIish uri, final CredentialsProvider credentialsProvider, final FS fs, final int tms) throws TransportException
+    {
+        if (!GitSshSessionPool.isEnabled())
+        {
+            return super.getSession(uri, credentialsProvider, fs, tms);
+        }
+        return GitSshSessionPool.getSession(getPoolKey(uri), new GitSshSessionPool.Connector()
+        {
+            @NotNull
+            public GitSshSessionPool.Connection connect() throws TransportException
+            {
+                final RemoteSession remoteSession = GitSshSessionFactory.super.getSession(uri, credentialsProvider, fs, tms);
+                return new GitSshSessionPool.Connection(remoteSession, createdSession);
+            }
+        });
+    }
+
+    @Override
+    protected Session createSession(OpenSshConfig.Host hc, String user, String host, int port, FS fs) throws JSchException
+    {
+        createdSession = super.createSession(hc, user, host, port, fs);
+        return createdSession;
     }
 
     @Override
@@ -35,4 +73,15 @@ public class GitSshSessionFactory extends JschConfigSessionFactory
         }
         return jsch;
     }
+
+    /**
+     * Sessions are shared only between connections to the same host and port, as the same user, with the same key
+     * (fingerprinted together with its passphrase) or password.
+     */
+    @NotNull
+    String getPoolKey(@NotNull final URIish uri)
+    {
+        final String credentials = GitCacheDirectory.calculateAggregateSha(key, passphrase, uri.getPass(), password);
+        return StringUtils.defaultString(uri.getUser()) + "@" + uri.getHost() + ":" + uri.getPort() + "#" + credentials;
+    }
 }
@@ -0,0 +1,373 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jcraft.jsch.Session;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of authenticated SSH sessions for JGit transports, keyed by user, host, port and credentials. A
+ * session is shared by up to {@link #CHANNELS_PER_SESSION} transports at a time, each running its commands on
+ * channels of its own, so that the transports of one operation and concurrent operations against the same host don't
+ * each pay for a key exchange and authentication.
+ * <p/>
+ * Sessions are checked for liveness before being handed out again and disconnected once they have been idle for
+ * {@link #IDLE_TIMEOUT_SECONDS}. When the pool is full, new sessions are disconnected as soon as they are released.
+ */
+class GitSshSessionPool
+{
+    private static final Logger log = Logger.getLogger(GitSshSessionPool.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int POOL_SIZE = new SystemProperty(false, "atlassian.bamboo.git.ssh.pool.size", "GIT_SSH_POOL_SIZE").getValue(8);
+    static final int IDLE_TIMEOUT_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.ssh.pool.idle", "GIT_SSH_POOL_IDLE").getValue(60);
+    static final int CHANNELS_PER_SESSION = new SystemProperty(false, "atlassian.bamboo.git.ssh.pool.channels", "GIT_SSH_POOL_CHANNELS").getValue(4);
+
+    // sessions idle for less than that are considered alive without asking the server
+    private static final long LIVENESS_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    // guarded by itself, as are pooledCount, evictionScheduled, executor and the fields of PooledSession
+    private static final Map<String, List<PooledSession>> pool = new HashMap<String, List<PooledSession>>();
+    private static int pooledCount;
+    private static boolean evictionScheduled;
+    private static ScheduledExecutorService executor;
+
+    private static final AtomicLong connectCount = new AtomicLong();
+    private static final AtomicLong reuseCount = new AtomicLong();
+
+    interface Connector
+    {
+        @NotNull
+        Connection connect() throws TransportException;
+    }
+
+    static class Connection
+    {
+        final RemoteSession remoteSession;
+        final Session session;
+
+        Connection(@NotNull final RemoteSession remoteSession, @NotNull final Session session)
+        {
+            this.remoteSession = remoteSession;
+            this.session = session;
+        }
+    }
+
+    private static class PooledSession
+    {
+        final String key;
+        final Connection connection;
+        int users;
+        long lastUsed = System.currentTimeMillis();
+
+        PooledSession(@NotNull final String key, @NotNull final Connection connection)
+        {
+            this.key = key;
+            this.connection = connection;
+        }
+    }
+
+    private GitSshSessionPool()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    static boolean isEnabled()
+    {
+        return POOL_SIZE > 0;
+    }
+
+    /**
+     * Returns a live pooled session for key with a free channel, or a new one opened with connector. Disconnecting the
+     * returned session gives it back to the pool.
+     */
+    @NotNull
+    static RemoteSession getSession(@NotNull final String key, @NotNull final Connector connector) throws TransportException
+    {
+        PooledSession pooledSession;
+        while ((pooledSession = acquire(key)) != null)
+        {
+            if (isAlive(pooledSession))
+            {
+                reuseCount.incrementAndGet();
+                return new Lease(pooledSession);
+            }
+            log.debug("Discarding dead SSH session to " + key);
+            discard(pooledSession);
+        }
+
+        final Connection connection = connector.connect();
+        connectCount.incrementAndGet();
+        pooledSession = new PooledSession(key, connection);
+        synchronized (pool)
+        {
+            if (pooledCount < POOL_SIZE)
+            {
+                List<PooledSession> sessions = pool.get(key);
+                if (sessions == null)
+                {
+                    sessions = new ArrayList<PooledSession>();
+                    pool.put(key, sessions);
+                }
+                sessions.add(pooledSession);
+                pooledCount++;
+                pooledSession.users = 1;
+                return new Lease(pooledSession);
+            }
+        }
+        return connection.remoteSession;
+    }
+
+    static long getConnectCount()
+    {
+        return connectCount.get();
+    }
+
+    static long getReuseCount()
+    {
+        return reuseCount.get();
+    }
+
+    /**
+     * Disconnects sessions which nobody has used since {@link #IDLE_TIMEOUT_SECONDS} before now.
+     */
+    static void evictIdle(final long now)
+    {
+        final List<PooledSession> evicted = new ArrayList<PooledSession>();
+        synchronized (pool)
+        {
+            for (Iterator<List<PooledSession>> lists = pool.values().iterator(); lists.hasNext(); )
+            {
+                final List<PooledSession> sessions = lists.next();
+                for (Iterator<PooledSession> it = sessions.iterator(); it.hasNext(); )
+                {
+                    final PooledSession pooledSession = it.next();
+                    if (pooledSession.users == 0 && now - pooledSession.lastUsed >= TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS))
+                    {
+                        it.remove();
+                        pooledCount--;
+                        evicted.add(pooledSession);
+                    }
+                }
+                if (sessions.isEmpty())
+                {
+                    lists.remove();
+                }
+            }
+        }
+        for (PooledSession pooledSession : evicted)
+        {
+            log.debug("Disconnecting SSH session to " + pooledSession.key + ", idle for " + IDLE_TIMEOUT_SECONDS + " seconds");
+            pooledSession.connection.remoteSession.disconnect();
+        }
+    }
+
+    /**
+     * Disconnects all idle sessions and stops the eviction thread, see {@link GitPluginLifecycle}. Sessions in use are
+     * disconnected when released.
+     */
+    static void shutdown()
+    {
+        final List<PooledSession> idle = new ArrayList<PooledSession>();
+        synchronized (pool)
+        {
+            for (List<PooledSession> sessions : pool.values())
+            {
+                for (PooledSession pooledSession : sessions)
+                {
+                    if (pooledSession.users == 0)
+                    {
+                        idle.add(pooledSession);
+                    }
+                }
+            }
+            pool.clear();
+            pooledCount = 0;
+            evictionScheduled = false;
+            if (executor != null)
+            {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        for (PooledSession pooledSession : idle)
+        {
+            pooledSession.connection.remoteSession.disconnect();
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @Nullable
+    private static PooledSession acquire(@NotNull final String key)
+    {
+        synchronized (pool)
+        {
+            final List<PooledSession> sessions = pool.get(key);
+            if (sessions != null)
+            {
+                for (PooledSession pooledSession : sessions)
+                {
+                    if (pooledSession.users < CHANNELS_PER_SESSION)
+                    {
+                        pooledSession.users++;
+                        return pooledSession;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static boolean isAlive(@NotNull final PooledSession pooledSession)
+    {
+        final long lastUsed;
+        synchronized (pool)
+        {
+            lastUsed = pooledSession.lastUsed;
+        }
+        final Session session = pooledSession.connection.session;
+        if (!session.isConnected())
+        {
+            return false;
+        }
+        if (System.currentTimeMillis() - lastUsed < LIVENESS_CHECK_MILLIS)
+        {
+            return true;
+        }
+        try
+        {
+            session.sendKeepAliveMsg();
+            return true;
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    private static void release(@NotNull final PooledSession pooledSession)
+    {
+        if (!pooledSession.connection.session.isConnected())
+        {
+            discard(pooledSession);
+            return;
+        }
+        final boolean disconnect;
+        synchronized (pool)
+        {
+            pooledSession.users--;
+            pooledSession.lastUsed = System.currentTimeMillis();
+            final List<PooledSession> sessions = pool.get(pooledSession.key);
+            final boolean removedFromPool = sessions == null || !sessions.contains(pooledSession);
+            if (pooledSession.users == 0 && !removedFromPool && !evictionScheduled)
+            {
+                evictionScheduled = true;
+                scheduleEviction();
+            }
+            disconnect = removedFromPool && pooledSession.users == 0;
+        }
+        if (disconnect)
+        {
+            // the pool has been shut down while the session was in use
+            pooledSession.connection.remoteSession.disconnect();
+        }
+    }
+
+    private static void discard(@NotNull final PooledSession pooledSession)
+    {
+        synchronized (pool)
+        {
+            final List<PooledSession> sessions = pool.get(pooledSession.key);
+            if (sessions != null && sessions.remove(pooledSession))
+            {
+                pooledCount--;
+                if (sessions.isEmpty())
+                {
+                    pool.remove(pooledSession.key);
+                }
+            }
+        }
+        pooledSession.connection.remoteSession.disconnect();
+    }
+
+    /**
+     * To be called while holding the pool lock.
+     */
+    private static void scheduleEviction()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("bamboo-git-ssh-session-evictor")
+                    .setDaemon(true)
+                    .build());
+        }
+        executor.schedule(new Runnable()
+        {
+            public void run()
+            {
+                evictIdle(System.currentTimeMillis());
+                synchronized (pool)
+                {
+                    // sessions in use now are released without scheduling, as this eviction is still in progress
+                    if (pooledCount > 0)
+                    {
+                        scheduleEviction();
+                    }
+                    else
+                    {
+                        evictionScheduled = false;
+                    }
+                }
+            }
+        }, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Use of a pooled session by a single transport.
+     */
+    private static class Lease implements RemoteSession
+    {
+        private final PooledSession pooledSession;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(@NotNull final PooledSession pooledSession)
+        {
+            this.pooledSession = pooledSession;
+        }
+
+        public Process exec(final String commandName, final int timeout) throws IOException
+        {
+            return pooledSession.connection.remoteSession.exec(commandName, timeout);
+        }
+
+        public void disconnect()
+        {
+            if (released.compareAndSet(false, true))
+            {
+                release(pooledSession);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes paths changed by commits against their first parents. With atlassian.bamboo.git.diff.threads greater than 1
+ * large batches of commits are split between threads of a server-wide pool, each diffing with its own TreeWalk (and so
+ * its own ObjectReader). Results are always returned in the order of requests.
+ */
+class GitTreeDiffer
+{
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int DIFF_THREADS = new SystemProperty(false, "atlassian.bamboo.git.diff.threads", "GIT_DIFF_THREADS").getValue(1);
+
+    // below that, handing the work over to other threads costs more than it saves
+    private static final int MIN_COMMITS_PER_THREAD = 8;
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private static ExecutorService pool;
+
+    static class DiffRequest
+    {
+        @Nullable final ObjectId parentTree;
+        final ObjectId tree;
+
+        /**
+         * @param parentTree tree of the first parent, null for root commits
+         */
+        DiffRequest(@Nullable final ObjectId parentTree, @NotNull final ObjectId tree)
+        {
+            this.parentTree = parentTree;
+            this.tree = tree;
+        }
+    }
+
+    private GitTreeDiffer()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @return changed paths for each request, in the order of requests
+     */
+    @NotNull
+    static List<List<String>> getChangedPaths(@NotNull final Repository repository, @NotNull final List<DiffRequest> requests) throws IOException
+    {
+        return getChangedPaths(repository, requests, DIFF_THREADS);
+    }
+
+    @NotNull
+    static List<List<String>> getChangedPaths(@NotNull final Repository repository, @NotNull final List<DiffRequest> requests, final int maxThreads) throws IOException
+    {
+        final int threads = Math.min(maxThreads, requests.size() / MIN_COMMITS_PER_THREAD);
+        if (threads <= 1)
+        {
+            return getChangedPathsSequentially(repository, requests);
+        }
+
+        final int chunkSize = (requests.size() + threads - 1) / threads;
+        final List<Future<List<List<String>>>> chunks = new ArrayList<Future<List<List<String>>>>();
+        try
+        {
+            for (int start = 0; start < requests.size(); start += chunkSize)
+            {
+                final List<DiffRequest> chunk = requests.subList(start, Math.min(start + chunkSize, requests.size()));
+                chunks.add(getPool().submit(new Callable<List<List<String>>>()
+                {
+                    public List<List<String>> call() throws IOException
+                    {
+                        return getChangedPathsSequentially(repository, chunk);
+                    }
+                }));
+            }
+
+            final List<List<String>> result = new ArrayList<List<String>>(requests.size());
+            for (Future<List<List<String>>> chunk : chunks)
+            {
+                result.addAll(chunk.get());
+            }
+            return result;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while diffing commits");
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+        finally
+        {
+            for (Future<List<List<String>>> chunk : chunks)
+            {
+                chunk.cancel(true); // no-op for completed ones
+            }
+        }
+    }
+
+    /**
+     * Stops the diff threads, see {@link GitPluginLifecycle}. They are started again on demand.
+     */
+    static synchronized void shutdown()
+    {
+        if (pool != null)
+        {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static synchronized ExecutorService getPool()
+    {
+        if (pool == null)
+        {
+            pool = Executors.newFixedThreadPool(Math.max(DIFF_THREADS, 1), new ThreadFactoryBuilder()
+                    .setNameFormat("bamboo-git-diff-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        return pool;
+    }
+
+    @NotNull
+    private static List<List<String>> getChangedPathsSequentially(@NotNull final Repository repository, @NotNull final List<DiffRequest> requests) throws IOException
+    {
+        final List<List<String>> result = new ArrayList<List<String>>(requests.size());
+        final TreeWalk treeWalk = new TreeWalk(repository);
+        try
+        {
+            treeWalk.setRecursive(true);
+            for (DiffRequest request : requests)
+            {
+                treeWalk.reset();
+                if (request.parentTree != null)
+                {
+                    treeWalk.addTree(request.parentTree);
+                }
+                else
+                {
+                    treeWalk.addTree(new EmptyTreeIterator());
+                }
+                treeWalk.addTree(request.tree);
+
+                final List<String> paths = new ArrayList<String>();
+                for (final DiffEntry entry : DiffEntry.scan(treeWalk))
+                {
+                    if (entry.getOldId().equals(entry.getNewId()))
+                    {
+                        continue;
+                    }
+                    paths.add(entry.getChangeType() == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath());
+                }
+                result.add(paths);
+            }
+        }
+        finally
+        {
+            treeWalk.release();
+        }
+        return result;
+    }
+}
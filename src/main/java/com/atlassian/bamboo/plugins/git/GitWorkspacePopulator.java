@@ -0,0 +1,191 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Populates clean workspaces by cloning files from a checkout of the same revision kept next to the cache, instead of
+ * writing every blob out again. Enabled with atlassian.bamboo.git.workspace.link set to <code>reflink</code>: files are
+ * copy-on-write clones where the file system supports them, plain copies elsewhere. Hardlinks are not offered, builds
+ * editing a file in place would modify the kept checkout and every workspace linked to it.
+ * <p/>
+ * The kept checkout's <code>.git</code> directory is copied along, so the regular checkout which follows sees an index
+ * describing the cloned files and only rewrites files whose content differs.
+ * <p/>
+ * Kept checkouts live in <code>&lt;cache&gt;-checkouts/&lt;revision&gt;</code>, are guarded by the cache locks of
+ * <code>&lt;cache&gt;-checkouts</code> and are evicted together with other caches.
+ */
+class GitWorkspacePopulator
+{
+    private static final Logger log = Logger.getLogger(GitWorkspacePopulator.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String LINK_MODE = new SystemProperty(false, "atlassian.bamboo.git.workspace.link", "GIT_WORKSPACE_LINK").getValue("none");
+
+    static final String REFLINK = "reflink";
+
+    static final String CHECKOUTS_SUFFIX = "-checkouts";
+
+    // checkouts of older revisions are unlikely to be needed again
+    private static final int KEPT_CHECKOUTS = 2;
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private GitWorkspacePopulator()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    static boolean isEnabled()
+    {
+        return REFLINK.equals(LINK_MODE) && !SystemUtils.IS_OS_WINDOWS;
+    }
+
+    /**
+     * @return true if sourceDirectory has been populated with targetRevision, false if it wasn't empty or populating
+     * failed (in which case it's left empty again)
+     */
+    static boolean populate(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @NotNull final File sourceDirectory, @NotNull final String targetRevision)
+    {
+        if (!ObjectId.isId(targetRevision) || ArrayUtils.isNotEmpty(sourceDirectory.list()))
+        {
+            return false;
+        }
+        if (GitPartialClone.isPartialClone(new File(cacheDirectory, Constants.DOT_GIT)))
+        {
+            // a kept checkout would hold all blobs, which a partial cache is meant to fetch only when needed
+            log.debug("Not populating " + sourceDirectory + ", " + cacheDirectory + " is a partial clone");
+            return false;
+        }
+
+        final File checkoutsDirectory = new File(cacheDirectory.getPath() + CHECKOUTS_SUFFIX);
+        final File checkout = new File(checkoutsDirectory, targetRevision);
+        try
+        {
+            GitCacheManager.recordAccess(checkoutsDirectory);
+            if (!checkout.isDirectory())
+            {
+                GitCacheDirectory.getCacheLock(checkoutsDirectory).withLock(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        createCheckout(helper, cacheDirectory, checkoutsDirectory, checkout, targetRevision);
+                        return null;
+                    }
+                });
+            }
+
+            return GitCacheDirectory.getCacheReadLock(checkoutsDirectory).withLock(new Callable<Boolean>()
+            {
+                public Boolean call() throws Exception
+                {
+                    if (!checkout.isDirectory())
+                    {
+                        return false; // evicted in the meantime
+                    }
+                    FileUtils.forceMkdir(sourceDirectory);
+                    copyTree(checkout, sourceDirectory);
+                    // cp --reflink may share the index and objects, git writes them through renames but better not to
+                    final File gitDirectory = new File(sourceDirectory, Constants.DOT_GIT);
+                    FileUtils.deleteDirectory(gitDirectory);
+                    FileUtils.copyDirectory(new File(checkout, Constants.DOT_GIT), gitDirectory);
+                    return true;
+                }
+            });
+        }
+        catch (Exception e)
+        {
+            log.warn("Cannot populate " + sourceDirectory + " from " + checkout + ", it will be checked out from scratch", e);
+            try
+            {
+                FileUtils.cleanDirectory(sourceDirectory);
+            }
+            catch (IOException cleanException)
+            {
+                log.warn("Cannot clean " + sourceDirectory, cleanException);
+            }
+            return false;
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static void createCheckout(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @NotNull final File checkoutsDirectory,
+                                       @NotNull final File checkout, @NotNull final String targetRevision) throws Exception
+    {
+        if (checkout.isDirectory())
+        {
+            return;
+        }
+        final File tmpCheckout = new File(checkoutsDirectory, targetRevision + ".tmp");
+        FileUtils.deleteQuietly(tmpCheckout);
+        helper.checkout(cacheDirectory, tmpCheckout, targetRevision, null);
+        if (!tmpCheckout.renameTo(checkout))
+        {
+            FileUtils.deleteQuietly(tmpCheckout);
+            throw new IOException("Cannot rename " + tmpCheckout + " to " + checkout);
+        }
+
+        final File[] checkouts = checkoutsDirectory.listFiles();
+        if (checkouts != null && checkouts.length > KEPT_CHECKOUTS)
+        {
+            final List<File> oldCheckouts = new ArrayList<File>(Arrays.asList(checkouts));
+            Collections.sort(oldCheckouts, new Comparator<File>()
+            {
+                public int compare(File o1, File o2)
+                {
+                    return o2.lastModified() < o1.lastModified() ? -1 : (o2.lastModified() == o1.lastModified() ? 0 : 1);
+                }
+            });
+            oldCheckouts.remove(checkout);
+            for (File oldCheckout : oldCheckouts.subList(KEPT_CHECKOUTS - 1, oldCheckouts.size()))
+            {
+                FileUtils.deleteQuietly(oldCheckout);
+            }
+        }
+    }
+
+    private static void copyTree(@NotNull final File source, @NotNull final File target) throws IOException, InterruptedException
+    {
+        final List<String> command = new ArrayList<String>(Arrays.asList("cp", "-R", "-p", "--reflink=auto"));
+        command.add(source.getAbsolutePath() + File.separator + ".");
+        command.add(target.getAbsolutePath());
+
+        final ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        final Process process = processBuilder.start();
+        try
+        {
+            process.getOutputStream().close();
+            final String output = IOUtils.toString(process.getInputStream());
+            final int exitCode = process.waitFor();
+            if (exitCode != 0)
+            {
+                throw new IOException(command + " failed with code " + exitCode + ": " + output);
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(process.getInputStream());
+            process.destroy();
+        }
+    }
+}
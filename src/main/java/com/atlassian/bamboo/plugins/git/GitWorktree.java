@@ -0,0 +1,95 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Build workspaces created as linked worktrees (<code>git worktree add</code>) of the cache repository, instead of
+ * repositories of their own borrowing objects through alternates. Creating a workspace only writes a few files of
+ * metadata, and refs and objects fetched into the cache are visible to all workspaces at once.
+ * <p/>
+ * Worktrees are managed by native git only (JGit can't open them), and are checked out at a detached HEAD, as git
+ * doesn't allow a branch to be checked out in more than one worktree. Workspaces which already exist as standalone
+ * repositories are left as they are.
+ */
+class GitWorktree
+{
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final boolean WORKTREE_WORKSPACES = new SystemProperty(false, "atlassian.bamboo.git.workspace.worktrees", "GIT_WORKSPACE_WORKTREES").getValue(false);
+
+    private static final String GITDIR_PREFIX = "gitdir:";
+    private static final String COMMONDIR_FILE = "commondir";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private GitWorktree()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @return true if sourceDirectory should be checked out as a worktree of cacheDirectory
+     */
+    static boolean isUsableFor(@NotNull final File cacheDirectory, @NotNull final File sourceDirectory, @NotNull final GitRepository.GitRepositoryAccessData accessData)
+    {
+        if (!WORKTREE_WORKSPACES || !GitSparseCheckout.getPaths(accessData.sparseCheckoutPaths).isEmpty()
+            || !new File(cacheDirectory, Constants.DOT_GIT).isDirectory())
+        {
+            return false;
+        }
+        if (isWorktree(sourceDirectory))
+        {
+            return true;
+        }
+        final String[] files = sourceDirectory.list();
+        return files == null || files.length == 0;
+    }
+
+    static boolean isWorktree(@NotNull final File workingDirectory)
+    {
+        return new File(workingDirectory, Constants.DOT_GIT).isFile();
+    }
+
+    /**
+     * @return directory of the repository shared by all worktrees if workingDirectory is a worktree, its own
+     * <code>.git</code> directory otherwise; the one to open with JGit to read refs, objects and configuration
+     */
+    @NotNull
+    static File getRepositoryDirectory(@NotNull final File workingDirectory) throws IOException
+    {
+        final File dotGit = new File(workingDirectory, Constants.DOT_GIT);
+        if (!dotGit.isFile())
+        {
+            return dotGit;
+        }
+        final String gitDirLine = StringUtils.trim(FileUtils.readFileToString(dotGit));
+        if (!StringUtils.startsWith(gitDirLine, GITDIR_PREFIX))
+        {
+            throw new IOException("Invalid " + dotGit + ": " + gitDirLine);
+        }
+        final File gitDir = resolve(workingDirectory, StringUtils.trim(gitDirLine.substring(GITDIR_PREFIX.length())));
+        final File commonDirFile = new File(gitDir, COMMONDIR_FILE);
+        if (!commonDirFile.isFile())
+        {
+            return gitDir;
+        }
+        return resolve(gitDir, StringUtils.trim(FileUtils.readFileToString(commonDirFile))).getCanonicalFile();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static File resolve(@NotNull final File base, @NotNull final String path)
+    {
+        final File file = new File(path);
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+}
@@ -5,6 +5,7 @@ import com.atlassian.bamboo.build.CommandLogEntry;
 import com.atlassian.bamboo.build.logger.BuildLogger;
 import com.atlassian.bamboo.repository.RepositoryException;
 import com.opensymphony.xwork.TextProvider;
+import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.dircache.DirCacheCheckout;
@@ -24,6 +25,9 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 public class JGitOperationHelper extends GitOperationHelper
 {
@@ -43,14 +47,37 @@ public class JGitOperationHelper extends GitOperationHelper
     // ----------------------------------------------------------------------------------------------- Interface Methods
 
     @Override
-    protected void doFetch(@NotNull final Transport transport, @NotNull final File sourceDirectory, final RefSpec refSpec, final boolean useShallow) throws RepositoryException
+    public void fetch(@NotNull final File sourceDirectory, @NotNull final Collection<String> branches, final boolean useShallow) throws RepositoryException
+    {
+        removePartialClone(sourceDirectory);
+        super.fetch(sourceDirectory, branches, useShallow);
+    }
+
+    @NotNull
+    @Override
+    public String checkout(@Nullable final File cacheDirectory, @NotNull final File sourceDirectory, @NotNull final String targetRevision, @Nullable final String previousRevision) throws RepositoryException
+    {
+        return super.checkout(cacheDirectory, sourceDirectory, targetRevision, removePartialClone(sourceDirectory) ? null : previousRevision);
+    }
+
+    /**
+     * @return false for a partial clone, so that it's fetched (and so replaced by a full clone) before it's used
+     */
+    @Override
+    public boolean isRevisionInCacheRepository(@NotNull final File repositoryDirectory, @NotNull final String targetRevision)
+    {
+        return !GitPartialClone.isPartialClone(new File(repositoryDirectory, Constants.DOT_GIT)) && super.isRevisionInCacheRepository(repositoryDirectory, targetRevision);
+    }
+
+    @Override
+    protected void doFetch(@NotNull final Transport transport, @NotNull final File sourceDirectory, @NotNull final List<RefSpec> refSpecs, final boolean useShallow) throws RepositoryException
     {
         String branchDescription = "(unresolved) " + accessData.branch;
         try
         {
             transport.setTagOpt(TagOpt.AUTO_FOLLOW);
 
-            FetchResult fetchResult = transport.fetch(new BuildLoggerProgressMonitor(buildLogger), Arrays.asList(refSpec), useShallow ? 1 : 0);
+            FetchResult fetchResult = transport.fetch(new BuildLoggerProgressMonitor(buildLogger), refSpecs, useShallow ? 1 : 0);
             buildLogger.addBuildLogEntry("Git: " + fetchResult.getMessages());
         }
         catch (IOException e)
@@ -97,6 +124,10 @@ public class JGitOperationHelper extends GitOperationHelper
         {
             buildLogger.addBuildLogEntry(new CommandLogEntry(textProvider.getText("repository.git.messages.jgit.submodules.not.supported")));
         }
+        if (!GitSparseCheckout.getPaths(accessData.sparseCheckoutPaths).isEmpty())
+        {
+            buildLogger.addBuildLogEntry(new CommandLogEntry(textProvider.getText("repository.git.messages.jgit.sparseCheckout.not.supported")));
+        }
 
         RevWalk revWalk = null;
         DirCache dirCache = null;
@@ -108,10 +139,22 @@ public class JGitOperationHelper extends GitOperationHelper
             final RevCommit targetCommit = revWalk.parseCommit(localRepository.resolve(targetRevision));
             final RevCommit previousCommit = previousRevision == null ? null : revWalk.parseCommit(localRepository.resolve(previousRevision));
 
-            DirCacheCheckout dirCacheCheckout = new DirCacheCheckout(localRepository,
-                                                                     previousCommit == null ? null : previousCommit.getTree(),
-                                                                     dirCache,
-                                                                     targetCommit.getTree());
+            // JGit can't mark index entries skip-worktree, so it always checks out the whole tree
+            final boolean wasSparse = GitSparseCheckout.configure(localRepository, Collections.<String>emptyList());
+            final DirCacheCheckout dirCacheCheckout;
+            if (!wasSparse)
+            {
+                dirCacheCheckout = new DirCacheCheckout(localRepository,
+                                                        previousCommit == null ? null : previousCommit.getTree(),
+                                                        dirCache,
+                                                        targetCommit.getTree());
+            }
+            else
+            {
+                // native git has checked out only some paths, compare the index with the target tree directly, so
+                // that the skipped paths are written too
+                dirCacheCheckout = new DirCacheCheckout(localRepository, dirCache, targetCommit.getTree());
+            }
             dirCacheCheckout.setFailOnConflict(true);
             try
             {
@@ -123,6 +166,8 @@ public class JGitOperationHelper extends GitOperationHelper
                 throw new RepositoryException(buildLogger.addErrorLogEntry(message));
             }
 
+            GitSparseCheckout.disableAfterFullCheckout(localRepository);
+
             final RefUpdate refUpdate = localRepository.updateRef(Constants.HEAD);
             refUpdate.setNewObjectId(targetCommit);
             refUpdate.forceUpdate();
@@ -161,4 +206,30 @@ public class JGitOperationHelper extends GitOperationHelper
     // -------------------------------------------------------------------------------------------------- Action Methods
     // -------------------------------------------------------------------------------------------------- Public Methods
     // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * JGit can't fetch the blobs a partial clone (see {@link GitPartialClone}) lacks, so it starts over with a full one.
+     *
+     * @return true if sourceDirectory was a partial clone and has been removed
+     */
+    private boolean removePartialClone(@NotNull final File sourceDirectory) throws RepositoryException
+    {
+        if (!GitPartialClone.isPartialClone(new File(sourceDirectory, Constants.DOT_GIT)))
+        {
+            return false;
+        }
+        buildLogger.addBuildLogEntry(new CommandLogEntry(textProvider.getText("repository.git.messages.jgit.partialClone.not.supported", Arrays.asList(sourceDirectory))));
+        GitBatchCheckWorker.closeWorkers(sourceDirectory);
+        try
+        {
+            FileUtils.cleanDirectory(sourceDirectory);
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException("Cannot remove partial clone " + sourceDirectory, e);
+        }
+        return true;
+    }
 }
@@ -4,13 +4,20 @@ import com.atlassian.bamboo.build.logger.BuildLogger;
 import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.ssh.ProxyConnectionData;
 import com.atlassian.bamboo.ssh.ProxyConnectionDataBuilder;
+import com.atlassian.bamboo.ssh.ProxyErrorReceiver;
 import com.atlassian.bamboo.ssh.ProxyException;
+import com.atlassian.bamboo.ssh.ProxyRegistrationInfo;
 import com.atlassian.bamboo.ssh.SshProxyService;
+import com.atlassian.bamboo.utils.SystemProperty;
 import com.google.common.collect.ImmutableMap;
 import com.opensymphony.xwork.TextProvider;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.Transport;
@@ -21,7 +28,10 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class NativeGitOperationHelper extends GitOperationHelper
 {
@@ -29,6 +39,8 @@ public class NativeGitOperationHelper extends GitOperationHelper
     private static final Logger log = Logger.getLogger(GitRepository.class);
     private static final String GIT_SCHEME = "git";
     // ------------------------------------------------------------------------------------------------------- Constants
+    static final boolean INCREMENTAL_CHECKOUT = new SystemProperty(false, "atlassian.bamboo.git.checkout.incremental", "GIT_CHECKOUT_INCREMENTAL").getValue(false);
+    static final boolean BLOBLESS_FETCH = new SystemProperty(false, "atlassian.bamboo.git.fetch.blobless", "GIT_FETCH_BLOBLESS").getValue(false);
     // ------------------------------------------------------------------------------------------------- Type Properties
     protected SshProxyService sshProxyService;
     GitCommandProcessor gitCommandProcessor;
@@ -53,18 +65,35 @@ public class NativeGitOperationHelper extends GitOperationHelper
     @Override
     public void pushRevision(@NotNull final File sourceDirectory, @NotNull String revision) throws RepositoryException
     {
-        String possibleBranch = gitCommandProcessor.getPossibleBranchNameForCheckout(sourceDirectory, revision);
-        if (StringUtils.isBlank(possibleBranch))
+        String pushRefSpec;
+        if (GitWorktree.isWorktree(sourceDirectory))
+        {
+            // worktrees are checked out detached, push to the branch they have been checked out for
+            final String branch = StringUtils.defaultIfEmpty(accessData.branch, Constants.MASTER);
+            pushRefSpec = revision + ":" + (branch.startsWith(Constants.R_REFS) ? branch : Constants.R_HEADS + branch);
+        }
+        else
+        {
+            pushRefSpec = gitCommandProcessor.getPossibleBranchNameForCheckout(sourceDirectory, revision);
+        }
+        if (StringUtils.isBlank(pushRefSpec))
         {
             throw new RepositoryException("Can't guess branch name for revision " + revision + " when trying to perform push.");
         }
         final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
-        GitCommandBuilder commandBuilder = gitCommandProcessor.createCommandBuilder("push", proxiedAccessData.repositoryUrl, possibleBranch);
-        if (proxiedAccessData.verboseLogs)
+        try
         {
-            commandBuilder.verbose(true);
+            GitCommandBuilder commandBuilder = gitCommandProcessor.createCommandBuilder("push", proxiedAccessData.repositoryUrl, pushRefSpec);
+            if (proxiedAccessData.verboseLogs)
+            {
+                commandBuilder.verbose(true);
+            }
+            gitCommandProcessor.runCommand(commandBuilder, sourceDirectory);
+        }
+        finally
+        {
+            closeProxy(proxiedAccessData);
         }
-        gitCommandProcessor.runCommand(commandBuilder, sourceDirectory);
     }
 
     @Override
@@ -98,12 +127,102 @@ public class NativeGitOperationHelper extends GitOperationHelper
     }
 
     @Override
-    protected void doFetch(@NotNull final Transport transport, @NotNull final File sourceDirectory, final RefSpec refSpec, final boolean useShallow) throws RepositoryException
+    protected String getRevision(File sourceDirectory, @NotNull String revision) throws RepositoryException
+    {
+        if (GitCacheDirectory.isCacheDirectory(sourceDirectory) && new File(sourceDirectory, Constants.DOT_GIT).exists())
+        {
+            try
+            {
+                final String objectId = gitCommandProcessor.getObjectId(sourceDirectory, revision);
+                if (objectId == null)
+                {
+                    throw new RepositoryException("Cannot resolve " + revision);
+                }
+                return objectId;
+            }
+            catch (IOException e)
+            {
+                log.debug("Cannot resolve " + revision + " with git cat-file, falling back to JGit", e);
+            }
+        }
+        return super.getRevision(sourceDirectory, revision);
+    }
+
+    @Override
+    public boolean checkRevisionExistsInCacheRepository(@NotNull File repositoryDirectory, @NotNull String targetRevision) throws IOException
+    {
+        if (!GitCacheDirectory.isCacheDirectory(repositoryDirectory))
+        {
+            return super.checkRevisionExistsInCacheRepository(repositoryDirectory, targetRevision);
+        }
+        final String commitId;
+        try
+        {
+            commitId = gitCommandProcessor.getObjectId(repositoryDirectory, targetRevision + "^{commit}");
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot look up " + targetRevision + " with git cat-file, falling back to JGit", e);
+            return super.checkRevisionExistsInCacheRepository(repositoryDirectory, targetRevision);
+        }
+        if (commitId == null)
+        {
+            throw new IOException("Revision " + targetRevision + " not found in " + repositoryDirectory);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isRevisionInCacheRepository(@NotNull File repositoryDirectory, @NotNull String targetRevision)
+    {
+        if (!GitCacheDirectory.isCacheDirectory(repositoryDirectory))
+        {
+            return super.isRevisionInCacheRepository(repositoryDirectory, targetRevision);
+        }
+        if (!new File(repositoryDirectory, Constants.DOT_GIT).isDirectory() || !ObjectId.isId(targetRevision))
+        {
+            return false;
+        }
+        try
+        {
+            return gitCommandProcessor.getObjectId(repositoryDirectory, targetRevision) != null;
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot look up " + targetRevision + " with git cat-file, falling back to JGit", e);
+            return super.isRevisionInCacheRepository(repositoryDirectory, targetRevision);
+        }
+    }
+
+    @Override
+    public boolean gcCacheRepository(@NotNull File cacheDirectory) throws RepositoryException
+    {
+        gitCommandProcessor.runGcCommand(cacheDirectory);
+        return true;
+    }
+
+    @Override
+    public boolean repackObjectStore(@NotNull File objectStore) throws RepositoryException
+    {
+        gitCommandProcessor.runRepackKeepingUnreachableCommand(objectStore);
+        return true;
+    }
+
+    @Override
+    protected void doFetch(@NotNull final Transport transport, @NotNull final File sourceDirectory, @NotNull final List<RefSpec> refSpecs, final boolean useShallow) throws RepositoryException
     {
         final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
         try
         {
-            gitCommandProcessor.runFetchCommand(sourceDirectory, proxiedAccessData, refSpec, useShallow);
+            if (BLOBLESS_FETCH)
+            {
+                configureBloblessFetch(sourceDirectory);
+                gitCommandProcessor.runBloblessFetchCommand(sourceDirectory, proxiedAccessData, refSpecs, useShallow);
+            }
+            else
+            {
+                gitCommandProcessor.runFetchCommand(sourceDirectory, proxiedAccessData, refSpecs, useShallow);
+            }
         }
         finally
         {
@@ -111,17 +230,171 @@ public class NativeGitOperationHelper extends GitOperationHelper
         }
     }
 
+    @NotNull
+    @Override
+    public String checkout(@Nullable final File cacheDirectory,
+                           @NotNull final File sourceDirectory,
+                           @NotNull final String targetRevision,
+                           @Nullable final String previousRevision) throws RepositoryException
+    {
+        if (cacheDirectory != null && GitWorktree.isUsableFor(cacheDirectory, sourceDirectory, accessData))
+        {
+            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.checkingOutRevision", Arrays.asList(targetRevision)));
+            return checkoutWorktree(cacheDirectory, sourceDirectory, targetRevision);
+        }
+        return super.checkout(cacheDirectory, sourceDirectory, targetRevision, previousRevision);
+    }
+
+    /**
+     * Checks out targetRevision into sourceDirectory, as a worktree of the repository in cacheDirectory, see
+     * {@link GitWorktree}. Must be called with the cache read lock held.
+     */
+    @NotNull
+    String checkoutWorktree(@NotNull final File cacheDirectory, @NotNull final File sourceDirectory, @NotNull final String targetRevision) throws RepositoryException
+    {
+        final GitRepository.GitRepositoryAccessData promisorAccessData;
+        try
+        {
+            final FileRepository cacheRepository = new FileRepository(new File(cacheDirectory, Constants.DOT_GIT));
+            try
+            {
+                promisorAccessData = enableLazyFetch(cacheRepository);
+            }
+            finally
+            {
+                cacheRepository.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(textProvider.getText("repository.git.messages.checkoutFailed", Arrays.asList(targetRevision))) + e.getMessage(), e);
+        }
+        try
+        {
+            if (GitWorktree.isWorktree(sourceDirectory))
+            {
+                gitCommandProcessor.runDetachedCheckoutCommand(sourceDirectory, targetRevision);
+            }
+            else
+            {
+                buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.creatingWorktree", Arrays.asList(sourceDirectory, cacheDirectory)));
+                gitCommandProcessor.runWorktreeAddCommand(cacheDirectory, sourceDirectory, targetRevision);
+            }
+        }
+        finally
+        {
+            // not to be passed on to submodules
+            disableLazyFetch(promisorAccessData);
+        }
+        if (accessData.useSubmodules)
+        {
+            gitCommandProcessor.runSubmoduleUpdateCommand(sourceDirectory);
+        }
+        return targetRevision;
+    }
+
     @Override
     protected String doCheckout(@NotNull FileRepository localRepository, @NotNull final File sourceDirectory, @NotNull final String targetRevision, @Nullable final String previousRevision, final boolean useSubmodules) throws RepositoryException
     {
-        gitCommandProcessor.runCheckoutCommand(sourceDirectory, targetRevision);
+        final List<String> sparseCheckoutPaths = GitSparseCheckout.getPaths(accessData.sparseCheckoutPaths);
+        try
+        {
+            GitSparseCheckout.configure(localRepository, sparseCheckoutPaths);
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException(buildLogger.addErrorLogEntry(textProvider.getText("repository.git.messages.checkoutFailed", Arrays.asList(targetRevision))) + e.getMessage(), e);
+        }
+        if (!sparseCheckoutPaths.isEmpty())
+        {
+            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.sparseCheckout", Arrays.asList(targetRevision, sparseCheckoutPaths)));
+        }
+
+        final GitRepository.GitRepositoryAccessData promisorAccessData = enableLazyFetch(localRepository);
+        try
+        {
+            if (!INCREMENTAL_CHECKOUT || previousRevision == null || !checkoutIncrementally(localRepository, sourceDirectory, previousRevision, targetRevision))
+            {
+                gitCommandProcessor.runCheckoutCommand(sourceDirectory, targetRevision, localRepository);
+            }
+        }
+        finally
+        {
+            // not to be passed on to submodules
+            disableLazyFetch(promisorAccessData);
+        }
         if (useSubmodules)
         {
             gitCommandProcessor.runSubmoduleUpdateCommand(sourceDirectory);
         }
+        if (sparseCheckoutPaths.isEmpty())
+        {
+            try
+            {
+                GitSparseCheckout.disableAfterFullCheckout(localRepository);
+            }
+            catch (IOException e)
+            {
+                log.warn("Cannot disable sparse checkout in " + sourceDirectory, e);
+            }
+        }
         return targetRevision;
     }
 
+    /**
+     * Moves a clean working copy from previousRevision to targetRevision updating only the paths which differ between
+     * them, instead of <code>checkout -f</code> going through the whole tree.
+     *
+     * @return false if the working copy has local changes (nothing is changed then)
+     */
+    boolean checkoutIncrementally(@NotNull final FileRepository localRepository, @NotNull final File sourceDirectory, @NotNull final String previousRevision, @NotNull final String targetRevision) throws RepositoryException
+    {
+        final RevWalk revWalk = new RevWalk(localRepository);
+        try
+        {
+            final ObjectId previousId = localRepository.resolve(previousRevision);
+            final ObjectId targetId = localRepository.resolve(targetRevision);
+            if (previousId == null || targetId == null)
+            {
+                return false;
+            }
+            final RevCommit previousCommit = revWalk.parseCommit(previousId);
+            final RevCommit targetCommit = revWalk.parseCommit(targetId);
+            final List<String> changedPaths = GitTreeDiffer.getChangedPaths(localRepository, Collections.singletonList(
+                    new GitTreeDiffer.DiffRequest(previousCommit.getTree(), targetCommit.getTree()))).get(0);
+
+            if (!gitCommandProcessor.runReadTreeUpdateCommand(sourceDirectory, previousCommit.name(), targetCommit.name()))
+            {
+                return false;
+            }
+
+            // same HEAD as checkout -f would leave: the branch if targetRevision is its head, detached otherwise
+            final String branch = gitCommandProcessor.getPossibleBranchNameForCheckout(localRepository, targetCommit.name());
+            if (StringUtils.isNotBlank(branch))
+            {
+                localRepository.updateRef(Constants.HEAD).link(Constants.R_HEADS + branch);
+            }
+            else
+            {
+                final RefUpdate refUpdate = localRepository.updateRef(Constants.HEAD, true);
+                refUpdate.setNewObjectId(targetCommit);
+                refUpdate.forceUpdate();
+            }
+
+            buildLogger.addBuildLogEntry(textProvider.getText("repository.git.messages.incrementalCheckout", Arrays.asList(targetCommit.name(), String.valueOf(changedPaths.size()))));
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.debug("Incremental checkout of " + targetRevision + " in " + sourceDirectory + " failed, checking out all files", e);
+            return false;
+        }
+        finally
+        {
+            revWalk.release();
+        }
+    }
+
     // -------------------------------------------------------------------------------------------------- Action Methods
     // -------------------------------------------------------------------------------------------------- Public Methods
     // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
@@ -135,7 +408,7 @@ public class NativeGitOperationHelper extends GitOperationHelper
         {
             final GitRepository.GitRepositoryAccessData proxyAccessData = accessData.cloneAccessData();
 
-            ScpAwareUri repositoryUri = ScpAwareUri.create(proxyAccessData.repositoryUrl);
+            final ScpAwareUri repositoryUri = ScpAwareUri.create(proxyAccessData.repositoryUrl);
 
             if (GIT_SCHEME.equals(repositoryUri.getScheme()) || UriUtils.isSsh(repositoryUri))
             {
@@ -147,32 +420,48 @@ public class NativeGitOperationHelper extends GitOperationHelper
                         proxyAccessData.username = username;
                     }
 
-                    final ProxyConnectionDataBuilder proxyConnectionDataBuilder =
-                            sshProxyService.createProxyConnectionDataBuilder()
-                                    .withRemoteAddress(repositoryUri.getHost(), repositoryUri.getPort() == -1 ? 22 : repositoryUri.getPort())
-                                    .withRemoteUserName(StringUtils.defaultIfEmpty(proxyAccessData.username, repositoryUri.getUserInfo()))
-                                    .withErrorReceiver(gitCommandProcessor);
-
-                    if (repositoryUri.isRelativePath())
-                    {
-                        proxyConnectionDataBuilder.withRemotePathMapping(repositoryUri.getAbsolutePath(), repositoryUri.getRawPath());
-                    }
+                    final String remoteUserName = StringUtils.defaultIfEmpty(proxyAccessData.username, repositoryUri.getUserInfo());
+                    final int remotePort = repositoryUri.getPort() == -1 ? 22 : repositoryUri.getPort();
+                    final String remotePathMapping = repositoryUri.isRelativePath() ? repositoryUri.getAbsolutePath() + ":" + repositoryUri.getRawPath() : "";
+                    final String credentials = accessData.authenticationType == GitAuthenticationType.SSH_KEYPAIR
+                            ? GitCacheDirectory.calculateAggregateSha(proxyAccessData.sshKey, proxyAccessData.sshPassphrase)
+                            : GitCacheDirectory.calculateAggregateSha(proxyAccessData.password);
+                    final String poolKey = remoteUserName + "@" + repositoryUri.getHost() + ":" + remotePort + remotePathMapping
+                                           + "#" + accessData.authenticationType + ":" + credentials;
 
-                    switch (accessData.authenticationType)
+                    proxyAccessData.proxyRegistrationInfo = GitSshProxyPool.register(sshProxyService, poolKey, gitCommandProcessor, TimeUnit.MINUTES.toMillis(accessData.commandTimeout), new GitSshProxyPool.Registrar()
                     {
-                        case SSH_KEYPAIR:
-                            proxyConnectionDataBuilder.withKeyFromString(proxyAccessData.sshKey, proxyAccessData.sshPassphrase);
-                            break;
-                        case PASSWORD:
-                            proxyConnectionDataBuilder.withRemotePassword(StringUtils.defaultString(proxyAccessData.password));
-                            break;
-                        default:
-                            throw new IllegalArgumentException("Proxy does not know how to handle " + accessData.authenticationType);
-                    }
-
-                    final ProxyConnectionData connectionData = proxyConnectionDataBuilder.build();
-
-                    proxyAccessData.proxyRegistrationInfo = sshProxyService.register(connectionData);
+                        @NotNull
+                        public ProxyRegistrationInfo register(@NotNull final ProxyErrorReceiver errorReceiver) throws IOException, ProxyException
+                        {
+                            final ProxyConnectionDataBuilder proxyConnectionDataBuilder =
+                                    sshProxyService.createProxyConnectionDataBuilder()
+                                            .withRemoteAddress(repositoryUri.getHost(), remotePort)
+                                            .withRemoteUserName(remoteUserName)
+                                            .withErrorReceiver(errorReceiver);
+
+                            if (repositoryUri.isRelativePath())
+                            {
+                                proxyConnectionDataBuilder.withRemotePathMapping(repositoryUri.getAbsolutePath(), repositoryUri.getRawPath());
+                            }
+
+                            switch (accessData.authenticationType)
+                            {
+                                case SSH_KEYPAIR:
+                                    proxyConnectionDataBuilder.withKeyFromString(proxyAccessData.sshKey, proxyAccessData.sshPassphrase);
+                                    break;
+                                case PASSWORD:
+                                    proxyConnectionDataBuilder.withRemotePassword(StringUtils.defaultString(proxyAccessData.password));
+                                    break;
+                                default:
+                                    throw new IllegalArgumentException("Proxy does not know how to handle " + accessData.authenticationType);
+                            }
+
+                            final ProxyConnectionData connectionData = proxyConnectionDataBuilder.build();
+
+                            return sshProxyService.register(connectionData);
+                        }
+                    });
 
                     final URI repositoryViaProxy = UriUtils.getUriViaProxy(proxyAccessData, repositoryUri);
 
@@ -224,13 +513,36 @@ public class NativeGitOperationHelper extends GitOperationHelper
     public boolean merge(@NotNull final File workspaceDir, @NotNull final String targetRevision,
                          @NotNull String committerName, @NotNull String committerEmail) throws RepositoryException
     {
-        GitCommandBuilder commandBuilder =
-                gitCommandProcessor
-                        .createCommandBuilder("merge", "--no-commit", targetRevision)
-                        .env(identificationVariables(committerName, committerEmail));
-
         String headRevisionBeforeMerge = getCurrentRevision(workspaceDir);
-        gitCommandProcessor.runMergeCommand(commandBuilder, workspaceDir);
+        final GitRepository.GitRepositoryAccessData promisorAccessData;
+        try
+        {
+            final FileRepository localRepository = new FileRepository(GitWorktree.getRepositoryDirectory(workspaceDir));
+            try
+            {
+                promisorAccessData = enableLazyFetch(localRepository);
+            }
+            finally
+            {
+                localRepository.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException("Cannot open repository in " + workspaceDir, e);
+        }
+        try
+        {
+            GitCommandBuilder commandBuilder =
+                    gitCommandProcessor
+                            .createCommandBuilder("merge", "--no-commit", targetRevision)
+                            .env(identificationVariables(committerName, committerEmail));
+            gitCommandProcessor.runMergeCommand(commandBuilder, workspaceDir);
+        }
+        finally
+        {
+            disableLazyFetch(promisorAccessData);
+        }
 
         if (containsSomethingToCommit(workspaceDir))
         {
@@ -314,6 +626,60 @@ public class NativeGitOperationHelper extends GitOperationHelper
 
     protected void closeProxy(@NotNull final GitRepository.GitRepositoryAccessData accessData)
     {
-        sshProxyService.unregister(accessData.proxyRegistrationInfo);
+        GitSshProxyPool.unregister(sshProxyService, accessData.proxyRegistrationInfo, gitCommandProcessor);
+    }
+
+    private void configureBloblessFetch(@NotNull final File sourceDirectory) throws RepositoryException
+    {
+        try
+        {
+            final FileRepository repository = new FileRepository(new File(sourceDirectory, Constants.DOT_GIT));
+            try
+            {
+                GitPartialClone.configureFetch(repository);
+            }
+            finally
+            {
+                repository.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException("Cannot configure partial clone in " + sourceDirectory, e);
+        }
+    }
+
+    /**
+     * Lets git commands created from now on fetch objects missing from a partial clone, until
+     * {@link #disableLazyFetch(GitRepository.GitRepositoryAccessData)} is called.
+     *
+     * @return access data of the remote missing objects are fetched from, null if the repository isn't a partial clone
+     */
+    @Nullable
+    private GitRepository.GitRepositoryAccessData enableLazyFetch(@NotNull final FileRepository localRepository) throws RepositoryException
+    {
+        try
+        {
+            if (!GitPartialClone.configureLazyFetch(localRepository))
+            {
+                return null;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException("Cannot configure partial clone in " + localRepository.getDirectory(), e);
+        }
+        final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
+        gitCommandProcessor.setPromisorRemoteUrl(proxiedAccessData.repositoryUrl);
+        return proxiedAccessData;
+    }
+
+    private void disableLazyFetch(@Nullable final GitRepository.GitRepositoryAccessData promisorAccessData)
+    {
+        if (promisorAccessData != null)
+        {
+            gitCommandProcessor.setPromisorRemoteUrl(null);
+            closeProxy(promisorAccessData);
+        }
     }
 }
@@ -1,31 +1,48 @@
 package com.atlassian.bamboo.plugins.git;
 
 import com.atlassian.bamboo.repository.RepositoryException;
+import com.atlassian.bamboo.utils.SystemProperty;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.TransportHttp;
 import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TransportAllTrustingHttps extends TransportHttp
 {
     private static final Logger log = Logger.getLogger(TransportAllTrustingHttps.class);
 
+    static final int SSL_SESSION_CACHE_SIZE = new SystemProperty(false, "atlassian.bamboo.git.https.session.cache.size", "GIT_HTTPS_SESSION_CACHE_SIZE").getValue(1000);
+    static final int SSL_SESSION_TIMEOUT_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.https.session.timeout", "GIT_HTTPS_SESSION_TIMEOUT").getValue(3600);
+
+    // shared by all transports, so that TLS sessions are resumed across operations instead of negotiated anew
+    private static SSLSocketFactory sharedSslSocketFactory;
+
+    private static final AtomicLong handshakeCount = new AtomicLong();
+    private static final AtomicLong resumedSessionCount = new AtomicLong();
+
     private final SSLSocketFactory sslSocketFactory;
 
     private static final TrustManager[] trustAllCerts = new TrustManager[]{
@@ -58,23 +75,52 @@ public class TransportAllTrustingHttps extends TransportHttp
             throws NotSupportedException, RepositoryException
     {
         super(local, uri);
+        sslSocketFactory = getSslSocketFactory();
+    }
 
-        SSLContext context;
-        try
-        {
-            context = SSLContext.getInstance("SSL");
-            context.init(null, trustAllCerts, new SecureRandom());
-            sslSocketFactory = context.getSocketFactory();
-        }
-        catch (NoSuchAlgorithmException e)
-        {
-            throw new RepositoryException("Cannot get SSL Context", e);
-        }
-        catch (KeyManagementException e)
+    /**
+     * @return number of full TLS handshakes done by https transports
+     */
+    static long getHandshakeCount()
+    {
+        return handshakeCount.get();
+    }
+
+    /**
+     * @return number of TLS handshakes of https transports which resumed a cached session
+     */
+    static long getResumedSessionCount()
+    {
+        return resumedSessionCount.get();
+    }
+
+    @NotNull
+    static synchronized SSLSocketFactory getSslSocketFactory() throws RepositoryException
+    {
+        if (sharedSslSocketFactory == null)
         {
-            throw new RepositoryException("Cannot initialize SSL Context", e);
+            try
+            {
+                final SSLContext context = SSLContext.getInstance("SSL");
+                context.init(null, trustAllCerts, null);
+                final SSLSessionContext sessionContext = context.getClientSessionContext();
+                if (sessionContext != null)
+                {
+                    sessionContext.setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+                    sessionContext.setSessionTimeout(SSL_SESSION_TIMEOUT_SECONDS);
+                }
+                sharedSslSocketFactory = new HandshakeCountingSocketFactory(context.getSocketFactory());
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new RepositoryException("Cannot get SSL Context", e);
+            }
+            catch (KeyManagementException e)
+            {
+                throw new RepositoryException("Cannot initialize SSL Context", e);
+            }
         }
-
+        return sharedSslSocketFactory;
     }
 
     public static boolean canHandle(final URIish uri) {
@@ -97,4 +143,89 @@ public class TransportAllTrustingHttps extends TransportHttp
 
         return httpsConnection;
     }
+
+    /**
+     * Counts full and resumed handshakes of the sockets it creates. A handshake has resumed a session if the session
+     * had been created before the socket.
+     */
+    private static class HandshakeCountingSocketFactory extends SSLSocketFactory
+    {
+        private final SSLSocketFactory delegate;
+
+        HandshakeCountingSocketFactory(@NotNull final SSLSocketFactory delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites()
+        {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException
+        {
+            return count(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException
+        {
+            return count(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException
+        {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+        {
+            return count(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException
+        {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+        {
+            return count(delegate.createSocket(address, port, localAddress, localPort));
+        }
+
+        private static Socket count(final Socket socket)
+        {
+            if (socket instanceof SSLSocket)
+            {
+                final long created = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener()
+                {
+                    public void handshakeCompleted(HandshakeCompletedEvent event)
+                    {
+                        if (event.getSession().getCreationTime() < created)
+                        {
+                            resumedSessionCount.incrementAndGet();
+                        }
+                        else
+                        {
+                            handshakeCount.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            return socket;
+        }
+    }
 }
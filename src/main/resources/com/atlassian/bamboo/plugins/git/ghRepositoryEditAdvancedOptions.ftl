@@ -1,4 +1,5 @@
 [#-- @ftlvariable name="repository" type="com.atlassian.bamboo.plugins.git.GitRepository" --]
 [@ww.checkbox labelKey='repository.github.useSubmodules' name='repository.github.useSubmodules' /]
+[@ww.textarea labelKey='repository.github.sparseCheckoutPaths' name='repository.github.sparseCheckoutPaths' rows='4' /]
 [@ww.textfield labelKey='repository.github.commandTimeout' name='repository.github.commandTimeout' /]
 [@ww.checkbox labelKey='repository.github.verbose.logs' name='repository.github.verbose.logs' /]
@@ -4,5 +4,6 @@
 [@ww.label labelKey='repository.github.branch' value=repository.branch!?html hideOnNull=true /]
 [@ww.label labelKey='repository.github.useShallowClones' value=repository.useShallowClones?string hideOnNull=true /]
 [@ww.label labelKey='repository.github.useSubmodules' value=repository.useSubmodules?string hideOnNull=true /]
+[@ww.label labelKey='repository.github.sparseCheckoutPaths' value=repository.sparseCheckoutPaths!?html hideOnNull=true /]
 [@ww.label labelKey='repository.github.commandTimeout' value=repository.commandTimeout! hideOnNull=true /]
 [@ww.label labelKey='repository.github.verbose.logs' value=repository.verboseLogs?string hideOnNull=true /]
@@ -1,4 +1,5 @@
 [#-- @ftlvariable name="repository" type="com.atlassian.bamboo.plugins.git.GitRepository" --]
 [@ww.checkbox labelKey='repository.git.useSubmodules' name='repository.git.useSubmodules' /]
+[@ww.textarea labelKey='repository.git.sparseCheckoutPaths' name='repository.git.sparseCheckoutPaths' rows='4' /]
 [@ww.textfield labelKey='repository.git.commandTimeout' name='repository.git.commandTimeout' /]
 [@ww.checkbox labelKey='repository.git.verbose.logs' name='repository.git.verbose.logs' /]
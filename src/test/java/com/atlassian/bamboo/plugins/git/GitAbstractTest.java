@@ -28,6 +28,9 @@ import com.opensymphony.xwork.TextProvider;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.RefSpec;
 import org.jetbrains.annotations.Nullable;
 import org.mockito.Mockito;
 import org.mockito.internal.stubbing.answers.Returns;
@@ -137,6 +140,38 @@ public class GitAbstractTest
         return new NativeGitOperationHelper(repository, accessData, sshProxyService, new NullBuildLogger(), textProvider);
     }
 
+    /**
+     * Fetches master of repositoryDirectory into cache as a blob-less partial clone, see {@link GitPartialClone}.
+     */
+    public void createPartialClone(File repositoryDirectory, File cache) throws Exception
+    {
+        FileRepository sourceRepository = new FileRepository(new File(repositoryDirectory, ".git"));
+        try
+        {
+            StoredConfig sourceConfig = sourceRepository.getConfig();
+            sourceConfig.setBoolean("uploadpack", null, "allowfilter", true);
+            sourceConfig.save();
+        }
+        finally
+        {
+            sourceRepository.close();
+        }
+
+        GitRepositoryAccessData accessData = createAccessData(repositoryDirectory, "master");
+        NativeGitOperationHelper helper = createNativeGitOperationHelper(accessData);
+        helper.gitCommandProcessor.runInitCommand(cache);
+        FileRepository cacheRepository = new FileRepository(new File(cache, ".git"));
+        try
+        {
+            GitPartialClone.configureFetch(cacheRepository);
+        }
+        finally
+        {
+            cacheRepository.close();
+        }
+        helper.gitCommandProcessor.runBloblessFetchCommand(cache, accessData, Collections.singletonList(new RefSpec("+refs/heads/master:refs/heads/master")), false);
+    }
+
     public GitRepository createNativeGitRepository() throws Exception
     {
         return _createGitRepository(new NativeGitRepositoryFixture());
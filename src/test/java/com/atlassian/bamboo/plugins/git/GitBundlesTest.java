@@ -0,0 +1,101 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class GitBundlesTest extends GitAbstractTest
+{
+    private static final String MASTER_HEAD = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+    private static final String MY_BRANCH_HEAD = "4367e71d438f091a5e85304618a8f78f9db6738e";
+
+    @Test
+    public void testRepositoryIsSeededFromBundleOfCache() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = createTempDirectory();
+        File bundles = createTempDirectory();
+        File seeded = createTempDirectory();
+
+        GitRepository.GitRepositoryAccessData accessData = createAccessData(repository, "master");
+        GitOperationHelper helper = createJGitOperationHelper(accessData);
+        helper.fetch(cache, false);
+        createJGitOperationHelper(createAccessData(repository, "myBranch")).fetch(cache, false);
+
+        File bundleFile = new File(bundles, GitBundles.getBundleName(accessData));
+        assertTrue(GitBundles.writeBundle(cache, bundleFile));
+        assertTrue(bundleFile.isFile());
+
+        FileRepository seededRepository = new FileRepository(new File(seeded, Constants.DOT_GIT));
+        try
+        {
+            seededRepository.create();
+            assertTrue(GitBundles.seed(seededRepository, accessData, bundles.getAbsolutePath()));
+            assertEquals(seededRepository.resolve(GitBundles.SEED_REFS_PREFIX + "heads/master").name(), MASTER_HEAD);
+            assertEquals(seededRepository.resolve(GitBundles.SEED_REFS_PREFIX + "heads/myBranch").name(), MY_BRANCH_HEAD);
+            assertNull(seededRepository.resolve("refs/heads/myBranch"));
+        }
+        finally
+        {
+            seededRepository.close();
+        }
+
+        // catching up only needs what the bundle doesn't have
+        helper.fetch(seeded, false);
+        assertEquals(helper.getCurrentRevision(seeded), MASTER_HEAD);
+        seededRepository = new FileRepository(new File(seeded, Constants.DOT_GIT));
+        try
+        {
+            assertTrue(seededRepository.getRefDatabase().getRefs(GitBundles.SEED_REFS_PREFIX).isEmpty());
+            assertNull(seededRepository.resolve("refs/heads/myBranch"));
+        }
+        finally
+        {
+            seededRepository.close();
+        }
+        assertEquals(helper.extractCommits(seeded, null, MASTER_HEAD).getChanges().size(),
+                     helper.extractCommits(repository, null, MASTER_HEAD).getChanges().size());
+    }
+
+    @Test
+    public void testMissingBundleIsSkipped() throws Exception
+    {
+        File repository = createTempDirectory();
+        File seeded = createTempDirectory();
+
+        FileRepository seededRepository = new FileRepository(new File(seeded, Constants.DOT_GIT));
+        try
+        {
+            seededRepository.create();
+            assertFalse(GitBundles.seed(seededRepository, createAccessData(repository, "master"), createTempDirectory().getAbsolutePath()));
+        }
+        finally
+        {
+            seededRepository.close();
+        }
+    }
+
+    @Test
+    public void testShallowCacheIsNotBundled() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = createTempDirectory();
+        File bundleFile = new File(createTempDirectory(), "shallow" + GitBundles.BUNDLE_EXTENSION);
+
+        createNativeGitOperationHelper(createAccessData("file://" + repository.getAbsolutePath(), "master")).fetch(cache, true);
+
+        assertFalse(GitBundles.writeBundle(cache, bundleFile));
+        assertFalse(bundleFile.exists());
+        GitBatchCheckWorker.closeWorkers(cache);
+    }
+}
@@ -1,11 +1,16 @@
 package com.atlassian.bamboo.plugins.git;
 
+import com.atlassian.util.concurrent.ManagedLock;
+import com.atlassian.util.concurrent.Supplier;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.File;
 import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
@@ -114,6 +119,32 @@ public class GitCacheDirectoryTest extends GitAbstractTest
         return accessData;
     }
 
+    @Test
+    public void testTrackedBranches() throws Exception
+    {
+        File cache = createTempDirectory();
+        Assert.assertTrue(GitCacheDirectory.getTrackedBranches(cache).isEmpty());
+
+        GitCacheDirectory.trackBranch(cache, "master");
+        GitCacheDirectory.trackBranch(cache, "myBranch");
+        GitCacheDirectory.trackBranch(cache, "master");
+
+        Assert.assertEquals(GitCacheDirectory.getTrackedBranches(cache), new HashSet<String>(Arrays.asList("master", "myBranch")));
+        Assert.assertTrue(GitCacheDirectory.getTrackedBranches(createTempDirectory()).isEmpty());
+    }
+
+    @Test
+    public void testStaleTrackedBranchesAreDropped() throws Exception
+    {
+        File cache = createTempDirectory();
+        long stale = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(GitCacheDirectory.TRACKED_BRANCH_TTL_HOURS) - 1000;
+
+        GitCacheDirectory.trackBranch(cache, "master");
+        GitCacheDirectory.trackBranch(cache, "removedLongAgo", stale);
+
+        Assert.assertEquals(GitCacheDirectory.getTrackedBranches(cache), Collections.singleton("master"));
+    }
+
     @Test(timeOut = 5000)
     public void testCallOnSameDirectoryBlocks() throws Exception
     {
@@ -126,7 +157,69 @@ public class GitCacheDirectoryTest extends GitAbstractTest
         verifySecondThreadBlocks("repository.url", "different.url", false);
     }
 
+    @Test(timeOut = 5000)
+    public void testSharedCallsOnSameDirectoryDoNotBlock() throws Exception
+    {
+        verifySecondThreadBlocks("repository.url", true, "repository.url", true, false);
+    }
+
+    @Test(timeOut = 5000)
+    public void testExclusiveCallBlocksSharedCall() throws Exception
+    {
+        verifySecondThreadBlocks("repository.url", false, "repository.url", true, true);
+    }
+
+    @Test(timeOut = 5000)
+    public void testSharedCallBlocksExclusiveCall() throws Exception
+    {
+        verifySecondThreadBlocks("repository.url", true, "repository.url", false, true);
+    }
+
+    @Test(timeOut = 5000)
+    public void testHeldLockIsNotCollected() throws Exception
+    {
+        final File cache = new File(createTempDirectory(), "cache");
+        GitCacheDirectory.getCacheLock(cache).withLock(new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                for (int i = 0; i < 5; i++)
+                {
+                    System.gc();
+                }
+                final CountDownLatch sharedCalled = new CountDownLatch(1);
+                Thread thread = new Thread("Shared lock thread") {
+                    @Override
+                    public void run()
+                    {
+                        GitCacheDirectory.getCacheReadLock(cache).withLock(new Supplier<Void>()
+                        {
+                            public Void get()
+                            {
+                                sharedCalled.countDown();
+                                return null;
+                            }
+                        });
+                    }
+                };
+                thread.start();
+                Assert.assertFalse(sharedCalled.await(500, TimeUnit.MILLISECONDS), "Shared lock taken while the exclusive one is held");
+                return null;
+            }
+        });
+    }
+
     private void verifySecondThreadBlocks(String firstUrl, String secondUrl, boolean blockExpected) throws Exception
+    {
+        verifySecondThreadBlocks(firstUrl, false, secondUrl, false, blockExpected);
+    }
+
+    private static ManagedLock getLock(File cacheDirectory, boolean shared)
+    {
+        return shared ? GitCacheDirectory.getCacheReadLock(cacheDirectory) : GitCacheDirectory.getCacheLock(cacheDirectory);
+    }
+
+    private void verifySecondThreadBlocks(String firstUrl, final boolean firstShared, String secondUrl, final boolean secondShared, boolean blockExpected) throws Exception
     {
         final GitRepository repository1 = createGitRepository();
         setRepositoryProperties(repository1, firstUrl, "");
@@ -147,7 +240,7 @@ public class GitCacheDirectoryTest extends GitAbstractTest
                 try
                 {
                     File cacheDirectory = repository1.getCacheDirectory();
-                    GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
+                    getLock(cacheDirectory, firstShared).withLock(new Callable<Void>()
                     {
                         public Void call() throws Exception
                         {
@@ -175,7 +268,7 @@ public class GitCacheDirectoryTest extends GitAbstractTest
                 try
                 {
                     File cacheDirectory = repository2.getCacheDirectory();
-                    GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
+                    getLock(cacheDirectory, secondShared).withLock(new Callable<Void>()
                     {
                         public Void call() throws Exception
                         {
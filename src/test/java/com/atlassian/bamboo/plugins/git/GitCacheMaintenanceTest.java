@@ -0,0 +1,51 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.plugins.git.GitCacheMaintenance.PackStatistics;
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GitCacheMaintenanceTest extends GitAbstractTest
+{
+    @Test
+    public void testNativeMaintenanceRepacksCache() throws Exception
+    {
+        File cache = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", cache);
+        File gitDirectory = new File(cache, ".git");
+
+        GitOperationHelper helper = createNativeGitOperationHelper(createAccessData(cache, null));
+        String head = helper.getCurrentRevision(cache);
+        PackStatistics before = GitCacheMaintenance.getPackStatistics(gitDirectory);
+        assertTrue(before.looseObjects > 0);
+
+        assertTrue(GitCacheMaintenance.maintain(helper, cache));
+
+        PackStatistics after = GitCacheMaintenance.getPackStatistics(gitDirectory);
+        assertEquals(after.packs, 1);
+        assertTrue(after.looseObjects < before.looseObjects);
+        assertTrue(new File(gitDirectory, GitCacheMaintenance.MAINTENANCE_MARKER).exists());
+        assertEquals(createJGitOperationHelper(null).getCurrentRevision(cache), head);
+        assertEquals(createJGitOperationHelper(null).extractCommits(cache, null, head).getChanges().size(), 100);
+        GitBatchCheckWorker.closeWorkers(cache);
+    }
+
+    @Test
+    public void testJGitCannotMaintainCache() throws Exception
+    {
+        File cache = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", cache);
+        File gitDirectory = new File(cache, ".git");
+        PackStatistics before = GitCacheMaintenance.getPackStatistics(gitDirectory);
+
+        assertFalse(GitCacheMaintenance.maintain(createJGitOperationHelper(null), cache));
+
+        assertEquals(GitCacheMaintenance.getPackStatistics(gitDirectory).looseObjects, before.looseObjects);
+        assertTrue(new File(gitDirectory, GitCacheMaintenance.MAINTENANCE_MARKER).exists());
+    }
+}
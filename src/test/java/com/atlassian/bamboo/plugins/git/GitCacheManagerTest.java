@@ -0,0 +1,131 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GitCacheManagerTest extends GitAbstractTest
+{
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    public void testLeastRecentlyUsedCachesAreEvicted() throws Exception
+    {
+        File cacheRoot = createTempDirectory();
+        long now = System.currentTimeMillis();
+        File oldest = createCache(cacheRoot, "oldest", now - 3 * HOUR);
+        File older = createCache(cacheRoot, "older", now - 2 * HOUR);
+        File recent = createCache(cacheRoot, "recent", now);
+
+        assertEquals(GitCacheManager.evict(cacheRoot, 3000, HOUR), 0);
+
+        assertEquals(GitCacheManager.evict(cacheRoot, 2500, HOUR), 1);
+        assertFalse(oldest.exists());
+        assertTrue(older.exists());
+        assertTrue(recent.exists());
+
+        // the recent cache is over the budget on its own, but it's in use
+        assertEquals(GitCacheManager.evict(cacheRoot, 500, HOUR), 1);
+        assertFalse(older.exists());
+        assertTrue(recent.exists());
+    }
+
+    @Test
+    public void testAccessedCacheIsKept() throws Exception
+    {
+        File cacheRoot = createTempDirectory();
+        long now = System.currentTimeMillis();
+        File accessed = createCache(cacheRoot, "accessed", now - 3 * HOUR);
+        File idle = createCache(cacheRoot, "idle", now - 2 * HOUR);
+
+        GitCacheManager.recordAccess(accessed);
+
+        assertEquals(GitCacheManager.evict(cacheRoot, 1000, HOUR), 1);
+        assertTrue(accessed.exists());
+        assertFalse(idle.exists());
+    }
+
+    @Test
+    public void testSharedObjectStoreIsEvictedAfterItsCaches() throws Exception
+    {
+        File cacheRoot = createTempDirectory();
+        long lastAccess = System.currentTimeMillis() - 3 * HOUR;
+        File store = createCache(cacheRoot, "a-objects", lastAccess);
+        File cache = createCache(cacheRoot, "b", lastAccess);
+        FileUtils.writeStringToFile(new File(cache, ".git/objects/info/alternates"), new File(store, "objects").getAbsolutePath() + "\n");
+        assertTrue(cache.setLastModified(lastAccess));
+
+        assertEquals(GitCacheManager.evict(cacheRoot, 1500, HOUR), 1);
+        assertFalse(cache.exists());
+        assertTrue(store.exists());
+
+        assertEquals(GitCacheManager.evict(cacheRoot, 500, HOUR), 1);
+        assertFalse(store.exists());
+    }
+
+    @Test
+    public void testKeptCheckoutsAreEvictedWithTheirCache() throws Exception
+    {
+        File cacheRoot = createTempDirectory();
+        long now = System.currentTimeMillis();
+        File cache = createCache(cacheRoot, "a", now - 2 * HOUR);
+        // older than its cache, but only removed together with it
+        File checkouts = createCache(cacheRoot, "a" + GitWorkspacePopulator.CHECKOUTS_SUFFIX, now - 3 * HOUR);
+        File other = createCache(cacheRoot, "b", now - HOUR / 2);
+
+        assertEquals(GitCacheManager.evict(cacheRoot, 2500, HOUR), 1);
+        assertFalse(cache.exists());
+        assertFalse(checkouts.exists());
+        assertTrue(other.exists());
+
+        // in use checkouts keep their cache
+        File usedCache = createCache(cacheRoot, "c", now - 3 * HOUR);
+        File usedCheckouts = createCache(cacheRoot, "c" + GitWorkspacePopulator.CHECKOUTS_SUFFIX, now);
+        assertEquals(GitCacheManager.evict(cacheRoot, 500, HOUR), 0);
+        assertTrue(usedCache.exists());
+        assertTrue(usedCheckouts.exists());
+
+        // checkouts of a cache that is gone are evicted on their own
+        File orphanedCheckouts = createCache(cacheRoot, "d" + GitWorkspacePopulator.CHECKOUTS_SUFFIX, now - 3 * HOUR);
+        assertEquals(GitCacheManager.evict(cacheRoot, 3000, HOUR), 1);
+        assertFalse(orphanedCheckouts.exists());
+    }
+
+    @Test
+    public void testFetchedPacksAreAddedToMeasuredSize() throws Exception
+    {
+        File cacheRoot = createTempDirectory();
+        long now = System.currentTimeMillis();
+        File cache = createCache(cacheRoot, "a", now - 2 * HOUR);
+        File other = createCache(cacheRoot, "b", now);
+        assertEquals(GitCacheManager.evict(cacheRoot, 5000, HOUR), 0);
+
+        // not a pack, so it is only seen once the size is measured again
+        FileUtils.writeByteArrayToFile(new File(cache, ".git/objects/ab/cdef"), new byte[3000]);
+        GitCacheManager.recordFetch(cache);
+        assertTrue(cache.setLastModified(now - 2 * HOUR));
+        assertEquals(GitCacheManager.evict(cacheRoot, 2500, HOUR), 0);
+
+        FileUtils.writeByteArrayToFile(new File(cache, ".git/objects/pack/pack-1.pack"), new byte[1000]);
+        GitCacheManager.recordFetch(cache);
+        GitCacheDirectory.trackBranch(cache, "master");
+        assertEquals(GitCacheManager.evict(cacheRoot, 2500, HOUR), 1);
+        assertFalse(cache.exists());
+        assertTrue(other.exists());
+        assertTrue(GitCacheDirectory.getTrackedBranches(cache).isEmpty());
+    }
+
+    private static File createCache(File cacheRoot, String name, long lastAccess) throws Exception
+    {
+        File cache = new File(cacheRoot, name);
+        FileUtils.writeByteArrayToFile(new File(cache, "objects"), new byte[1000]);
+        assertTrue(cache.setLastModified(lastAccess));
+        return cache;
+    }
+}
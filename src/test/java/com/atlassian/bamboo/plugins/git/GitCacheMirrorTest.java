@@ -0,0 +1,72 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GitCacheMirrorTest extends GitAbstractTest
+{
+    private static final String MASTER_HEAD = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+
+    @Test
+    public void testPartialCachesAreNotMirrored() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File serverCaches = createTempDirectory();
+        File agentCache = createTempDirectory();
+
+        GitRepository.GitRepositoryAccessData accessData = createAccessData(repository, "master");
+        File serverCache = new File(GitCacheMirror.getMirrorUrl(serverCaches.getAbsolutePath(), accessData));
+        createPartialClone(repository, serverCache);
+        assertFalse(GitCacheMirror.fetch(agentCache, accessData, serverCaches.getAbsolutePath(), MASTER_HEAD, getTextProvider()));
+        assertFalse(new File(agentCache, ".git").exists());
+
+        // a partial agent cache is left for native git to fetch into, even from a full mirror
+        FileUtils.deleteDirectory(serverCache);
+        createJGitOperationHelper(accessData).fetch(serverCache, false);
+        createPartialClone(repository, agentCache);
+        assertFalse(GitCacheMirror.fetch(agentCache, accessData, serverCaches.getAbsolutePath(), MASTER_HEAD, getTextProvider()));
+        assertTrue(GitPartialClone.isPartialClone(new File(agentCache, ".git")));
+        GitBatchCheckWorker.closeWorkers(serverCache);
+        GitBatchCheckWorker.closeWorkers(agentCache);
+    }
+
+    @Test
+    public void testAgentCacheIsFetchedFromServerCache() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File serverCaches = createTempDirectory();
+        File agentCache = createTempDirectory();
+
+        GitRepository.GitRepositoryAccessData accessData = createAccessData(repository, "master");
+        File serverCache = new File(GitCacheMirror.getMirrorUrl(serverCaches.getAbsolutePath(), accessData));
+        assertEquals(serverCache.getParentFile(), serverCaches);
+        createJGitOperationHelper(accessData).fetch(serverCache, false);
+
+        // the origin isn't needed anymore
+        FileUtils.deleteDirectory(repository);
+
+        assertTrue(GitCacheMirror.fetch(agentCache, accessData, serverCaches.getAbsolutePath(), MASTER_HEAD, getTextProvider()));
+        GitOperationHelper helper = createJGitOperationHelper(accessData);
+        assertEquals(helper.getCurrentRevision(agentCache), MASTER_HEAD);
+    }
+
+    @Test
+    public void testMissingServerCacheFallsBackToOrigin() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File agentCache = createTempDirectory();
+
+        GitRepository.GitRepositoryAccessData accessData = createAccessData(repository, "master");
+        assertFalse(GitCacheMirror.fetch(agentCache, accessData, createTempDirectory().getAbsolutePath(), MASTER_HEAD, getTextProvider()));
+    }
+}
@@ -0,0 +1,161 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class GitFetchCoalescerTest extends GitAbstractTest
+{
+    private static final String REVISION = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+
+    @Test(timeOut = 5000)
+    public void testConcurrentCallersShareFetchInProgress() throws Exception
+    {
+        final File cacheDirectory = createTempDirectory();
+        final CountDownLatch fetchStarted = new CountDownLatch(1);
+        final CountDownLatch fetchMayFinish = new CountDownLatch(1);
+        final CountingFetcher fetcher = new CountingFetcher(fetchStarted, fetchMayFinish);
+        final long joinedBefore = GitFetchCoalescer.getJoinedFetchCount();
+
+        final FetchThread firstThread = new FetchThread("First fetch", cacheDirectory, fetcher);
+        firstThread.start();
+        assertTrue(fetchStarted.await(1000, TimeUnit.MILLISECONDS), "First fetch should start promptly");
+
+        final FetchThread secondThread = new FetchThread("Second fetch", cacheDirectory, fetcher);
+        secondThread.start();
+
+        // the first fetch is held until the second caller has joined it
+        while (GitFetchCoalescer.getJoinedFetchCount() == joinedBefore)
+        {
+            Thread.sleep(10);
+        }
+
+        fetcher.revisionPresent = true;
+        fetchMayFinish.countDown();
+        firstThread.joinAndRethrow();
+        secondThread.joinAndRethrow();
+
+        assertEquals(fetcher.fetches.get(), 1);
+        assertEquals(GitFetchCoalescer.getJoinedFetchCount() - joinedBefore, 1);
+    }
+
+    @Test
+    public void testRecentlyFetchedRevisionIsNotFetchedAgain() throws Exception
+    {
+        final File cacheDirectory = createTempDirectory();
+        final CountingFetcher fetcher = new CountingFetcher(null, null);
+
+        GitFetchCoalescer.fetch(cacheDirectory, "master", REVISION, fetcher);
+        fetcher.revisionPresent = true;
+        GitFetchCoalescer.fetch(cacheDirectory, "master", REVISION, fetcher);
+
+        assertEquals(fetcher.fetches.get(), 1);
+    }
+
+    @Test
+    public void testMissingRevisionIsFetched() throws Exception
+    {
+        final File cacheDirectory = createTempDirectory();
+        final CountingFetcher fetcher = new CountingFetcher(null, null);
+
+        GitFetchCoalescer.fetch(cacheDirectory, "master", REVISION, fetcher);
+        GitFetchCoalescer.fetch(cacheDirectory, "master", REVISION, fetcher);
+
+        assertEquals(fetcher.fetches.get(), 2);
+    }
+
+    @Test
+    public void testDifferentBranchesAreNotCoalesced() throws Exception
+    {
+        final File cacheDirectory = createTempDirectory();
+        final CountingFetcher fetcher = new CountingFetcher(null, null);
+        fetcher.revisionPresent = true;
+
+        GitFetchCoalescer.fetch(cacheDirectory, "master", REVISION, fetcher);
+        GitFetchCoalescer.fetch(cacheDirectory, "myBranch", REVISION, fetcher);
+
+        assertEquals(fetcher.fetches.get(), 2);
+    }
+
+    private static class FetchThread extends Thread
+    {
+        private final File cacheDirectory;
+        private final CountingFetcher fetcher;
+        private volatile Throwable failure;
+
+        FetchThread(String name, File cacheDirectory, CountingFetcher fetcher)
+        {
+            super(name);
+            this.cacheDirectory = cacheDirectory;
+            this.fetcher = fetcher;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                GitFetchCoalescer.fetch(cacheDirectory, "master", REVISION, fetcher);
+            }
+            catch (Throwable e)
+            {
+                failure = e;
+            }
+        }
+
+        void joinAndRethrow() throws Exception
+        {
+            join();
+            if (failure != null)
+            {
+                final AssertionError error = new AssertionError(getName() + " has failed: " + failure);
+                error.initCause(failure);
+                throw error;
+            }
+        }
+    }
+
+    private static class CountingFetcher implements GitFetchCoalescer.Fetcher
+    {
+        final AtomicInteger fetches = new AtomicInteger();
+        final CountDownLatch fetchStarted;
+        final CountDownLatch fetchMayFinish;
+        volatile boolean revisionPresent;
+
+        CountingFetcher(CountDownLatch fetchStarted, CountDownLatch fetchMayFinish)
+        {
+            this.fetchStarted = fetchStarted;
+            this.fetchMayFinish = fetchMayFinish;
+        }
+
+        public void fetch() throws RepositoryException
+        {
+            fetches.incrementAndGet();
+            if (fetchStarted != null)
+            {
+                fetchStarted.countDown();
+                try
+                {
+                    fetchMayFinish.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new RepositoryException("Interrupted", e);
+                }
+            }
+        }
+
+        public boolean isRevisionPresent(@NotNull String revision)
+        {
+            return revisionPresent;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.atlassian.bamboo.plugins.git;
 
+import com.atlassian.bamboo.build.logger.NullBuildLogger;
 import com.atlassian.bamboo.commit.CommitContext;
 import com.atlassian.bamboo.commit.CommitContextImpl;
 import com.atlassian.bamboo.commit.CommitFile;
@@ -8,9 +9,14 @@ import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.testtools.ZipResourceDirectory;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.transport.Transport;
+import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
@@ -20,8 +26,10 @@ import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
@@ -263,7 +271,24 @@ public class GitOperationHelperTest extends GitAbstractTest
         ZipResourceDirectory.copyZipResourceToDirectory(repositoryZip, tmp);
 
         List<CommitContext> commits = createJGitOperationHelper(null).extractCommits(tmp, previousRevision, targetRevision).getChanges();
+        verifyCommits(commits, expectedCommits);
+    }
+
+    @Test(dataProvider = "testExtractCommitsData")
+    public void testExtractCommitsFromChangesetIndex(String repositoryZip, String previousRevision, String targetRevision, CommitContext[] expectedCommits) throws Exception
+    {
+        File tmp = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory(repositoryZip, tmp);
+
+        createJGitOperationHelper(null).extractCommits(tmp, previousRevision, targetRevision);
+        assertTrue(new File(tmp, ".git/" + GitChangesetIndex.INDEX_DIRECTORY).isDirectory());
 
+        List<CommitContext> commits = createJGitOperationHelper(null).extractCommits(tmp, previousRevision, targetRevision).getChanges();
+        verifyCommits(commits, expectedCommits);
+    }
+
+    private void verifyCommits(List<CommitContext> commits, CommitContext[] expectedCommits)
+    {
         assertEquals(commits.size(), expectedCommits.length);
         for (int i = 0; i < commits.size(); i++)
         {
@@ -347,7 +372,248 @@ public class GitOperationHelperTest extends GitAbstractTest
             assertEquals(buildChanges.getChanges().get(i).getComment(), Integer.toString(150 - i) + "\n");
         }
     }
-    
+
+    @Test
+    public void testNativeRevisionLookupsMatchJGit() throws Exception
+    {
+        File tmp = new File(new File(createTempDirectory(), GitCacheDirectory.GIT_REPOSITORY_CACHE_DIRECTORY), "cache");
+        ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", tmp);
+
+        GitOperationHelper jGitHelper = createJGitOperationHelper(null);
+        GitOperationHelper nativeHelper = createNativeGitOperationHelper(createAccessData(tmp, null));
+        String head = jGitHelper.getCurrentRevision(tmp);
+
+        for (int i = 0; i < 2; i++) // the second round goes to an already running git process
+        {
+            assertEquals(nativeHelper.getCurrentRevision(tmp), head);
+            assertTrue(nativeHelper.checkRevisionExistsInCacheRepository(tmp, head));
+            assertTrue(nativeHelper.isRevisionInCacheRepository(tmp, head));
+            assertFalse(nativeHelper.isRevisionInCacheRepository(tmp, "a26ff19c3c63e19d6a57a396c764b140f48c530a"));
+            assertEquals(nativeHelper.getRevisionIfExists(tmp, "noSuchBranch"), null);
+        }
+        assertTrue(GitBatchCheckWorker.isRunning(tmp));
+        GitBatchCheckWorker.closeWorkers(tmp);
+    }
+
+    @Test
+    public void testWorkspaceRevisionLookupsDoNotStartWorkers() throws Exception
+    {
+        File workspace = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", workspace);
+
+        String head = createJGitOperationHelper(null).getCurrentRevision(workspace);
+        GitOperationHelper nativeHelper = createNativeGitOperationHelper(createAccessData(workspace, null));
+        assertEquals(nativeHelper.getCurrentRevision(workspace), head);
+        assertTrue(nativeHelper.isRevisionInCacheRepository(workspace, head));
+        assertFalse(GitBatchCheckWorker.isRunning(workspace));
+    }
+
+    @Test
+    public void testBranchForCheckoutIsFoundInProcess() throws Exception
+    {
+        File tmp = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("detect-branches/detect-branches-repo.zip", tmp);
+
+        NativeGitOperationHelper connector = createNativeGitOperationHelper(createAccessData(tmp, "master"));
+        GitCommandProcessor processor = connector.gitCommandProcessor;
+
+        assertEquals(processor.getPossibleBranchNameForCheckout(tmp, "7ffea3f"), "a_branch");
+        assertEquals(processor.getPossibleBranchNameForCheckout(tmp, "master"), "master");
+        assertEquals(processor.getPossibleBranchNameForCheckout(tmp, "HEAD"), ""); // detached, not a branch head
+        assertEquals(processor.getPossibleBranchNameForCheckout(tmp, "a26ff19c3c63e19d6a57a396c764b140f48c530a"), "");
+
+        processor.runCheckoutCommand(tmp, "7ffea3f");
+        FileRepository repository = new FileRepository(new File(tmp, ".git"));
+        try
+        {
+            assertEquals(repository.getFullBranch(), "refs/heads/a_branch");
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testIncrementalNativeCheckout() throws Exception
+    {
+        File tmp = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", tmp);
+        NativeGitOperationHelper helper = createNativeGitOperationHelper(createAccessData(tmp, "master"));
+
+        String previousRevision = helper.checkout(null, tmp, "55676cfa3db13bcf659b2a35e5d61eba478ed54d", null);
+        FileRepository repository = new FileRepository(new File(tmp, ".git"));
+        try
+        {
+            assertTrue(helper.checkoutIncrementally(repository, tmp, previousRevision, "2e20b0733759facbeb0dec6ee345d762dbc8eed8"));
+            verifyContents(tmp, "basic-repo-contents-2e20b0733759facbeb0dec6ee345d762dbc8eed8.zip");
+            assertEquals(helper.getCurrentRevision(tmp), "2e20b0733759facbeb0dec6ee345d762dbc8eed8");
+
+            assertTrue(helper.checkoutIncrementally(repository, tmp, "2e20b0733759facbeb0dec6ee345d762dbc8eed8", "a26ff19c3c63e19d6a57a396c764b140f48c530a"));
+            verifyContents(tmp, "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip");
+            assertEquals(repository.getFullBranch(), "refs/heads/master");
+
+            // local changes have to be discarded, which only a full checkout does
+            FileUtils.writeStringToFile(new File(tmp, "b.txt"), "modified");
+            assertFalse(helper.checkoutIncrementally(repository, tmp, "a26ff19c3c63e19d6a57a396c764b140f48c530a", "55676cfa3db13bcf659b2a35e5d61eba478ed54d"));
+            assertEquals(FileUtils.readFileToString(new File(tmp, "b.txt")), "modified");
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testSparseCheckout() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = new File(createTempDirectory(), "cache");
+        File workspace = createTempDirectory();
+
+        GitRepository.GitRepositoryAccessData accessData = createAccessData(repository, "master");
+        GitOperationHelper helper = createNativeGitOperationHelper(accessData);
+        helper.fetch(cache, false);
+        helper.fetch(cache, Arrays.asList("myBranch"), false);
+
+        accessData.sparseCheckoutPaths = "sparta.txt";
+        String previousRevision = helper.checkout(cache, workspace, "a26ff19c3c63e19d6a57a396c764b140f48c530a", null);
+        assertEquals(workspace.list().length, 2);
+        assertTrue(new File(workspace, "sparta.txt").isFile());
+        assertEquals(runGitStatus(workspace), "");
+
+        accessData.sparseCheckoutPaths = "/sparta.txt\n\nxerxes.txt\n";
+        previousRevision = helper.checkout(cache, workspace, "4367e71d438f091a5e85304618a8f78f9db6738e", previousRevision);
+        verifyContents(workspace, "basic-repo-contents-4367e71d438f091a5e85304618a8f78f9db6738e.zip");
+
+        accessData.sparseCheckoutPaths = "";
+        helper.checkout(cache, workspace, "a26ff19c3c63e19d6a57a396c764b140f48c530a", previousRevision);
+        verifyContents(workspace, "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip");
+        GitBatchCheckWorker.closeWorkers(workspace);
+    }
+
+    @Test
+    public void testJGitChecksOutWholeTreeWhenSparsePathsAreSet() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = new File(createTempDirectory(), "cache");
+        File workspace = createTempDirectory();
+
+        GitRepository.GitRepositoryAccessData accessData = createAccessData(repository, "master");
+        GitOperationHelper nativeHelper = createNativeGitOperationHelper(accessData);
+        GitOperationHelper jgitHelper = createJGitOperationHelper(accessData);
+        nativeHelper.fetch(cache, false);
+        nativeHelper.fetch(cache, Arrays.asList("myBranch"), false);
+
+        accessData.sparseCheckoutPaths = "sparta.txt";
+        String previousRevision = jgitHelper.checkout(cache, workspace, "a26ff19c3c63e19d6a57a396c764b140f48c530a", null);
+        verifyContents(workspace, "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip");
+        assertEquals(runGitStatus(workspace), "");
+
+        // a working copy checked out sparsely by native git is completed by JGit
+        previousRevision = nativeHelper.checkout(cache, workspace, "4367e71d438f091a5e85304618a8f78f9db6738e", previousRevision);
+        jgitHelper.checkout(cache, workspace, "a26ff19c3c63e19d6a57a396c764b140f48c530a", previousRevision);
+        verifyContents(workspace, "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip");
+        assertEquals(runGitStatus(workspace), "");
+        GitBatchCheckWorker.closeWorkers(workspace);
+    }
+
+    private static String runGitStatus(File workspace) throws Exception
+    {
+        Process process = new ProcessBuilder("git", "status", "--porcelain").directory(workspace).redirectErrorStream(true).start();
+        try
+        {
+            String output = IOUtils.toString(process.getInputStream()).trim();
+            assertEquals(process.waitFor(), 0, output);
+            return output;
+        }
+        finally
+        {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void testCountingRemainingCommitsIsBounded() throws Exception
+    {
+        File tmp = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", tmp);
+
+        FileRepository repository = new FileRepository(new File(tmp, ".git"));
+        try
+        {
+            RevWalk revWalk = new RevWalk(repository);
+            revWalk.markStart(revWalk.parseCommit(repository.resolve("HEAD")));
+            revWalk.next();
+            assertEquals(GitOperationHelper.countRemainingCommits(revWalk, 20), 20);
+            assertEquals(GitOperationHelper.countRemainingCommits(revWalk, -1), 129);
+            revWalk.release();
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testFetchingMultipleBranches() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = createTempDirectory();
+
+        GitOperationHelper helper = createJGitOperationHelper(createAccessData(repository, "master"));
+        helper.fetch(cache, Arrays.asList("master", "myBranch", "removedBranch"), false);
+
+        assertTrue(helper.isRevisionInCacheRepository(cache, "a26ff19c3c63e19d6a57a396c764b140f48c530a"));
+        assertTrue(helper.isRevisionInCacheRepository(cache, "4367e71d438f091a5e85304618a8f78f9db6738e"));
+        assertFalse(helper.isRevisionInCacheRepository(cache, "f15f4c4a5881a2fdfa8b153dc377a081685e1d24"));
+        assertEquals(helper.getCurrentRevision(cache), "a26ff19c3c63e19d6a57a396c764b140f48c530a");
+    }
+
+    @Test
+    public void testRevisionInCacheRepository() throws Exception
+    {
+        File tmp = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", tmp);
+
+        GitOperationHelper helper = createJGitOperationHelper(null);
+        String head = helper.getCurrentRevision(tmp);
+
+        assertTrue(helper.isRevisionInCacheRepository(tmp, head));
+        assertFalse(helper.isRevisionInCacheRepository(tmp, "a26ff19c3c63e19d6a57a396c764b140f48c530a"));
+        assertFalse(helper.isRevisionInCacheRepository(tmp, "HEAD"));
+        assertFalse(helper.isRevisionInCacheRepository(createTempDirectory(), head));
+    }
+
+    @Test
+    public void testRemoteRefsAreListedOncePerOperation() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+
+        final AtomicInteger listings = new AtomicInteger();
+        GitOperationHelper helper = new JGitOperationHelper(createAccessData(repository, "master"), new NullBuildLogger(), getTextProvider())
+        {
+            @Override
+            protected <E extends Throwable, T> T withFetchConnection(@NotNull Transport transport, @NotNull WithFetchConnectionCallback<E, T> callback) throws E, NotSupportedException, TransportException
+            {
+                listings.incrementAndGet();
+                return super.withFetchConnection(transport, callback);
+            }
+        };
+
+        File tmp = createTempDirectory();
+        String revision = helper.obtainLatestRevision();
+        helper.fetch(tmp, false);
+
+        assertEquals(revision, "a26ff19c3c63e19d6a57a396c764b140f48c530a");
+        assertEquals(helper.getCurrentRevision(tmp), revision);
+        assertEquals(listings.get(), 1);
+    }
+
    @DataProvider
     Object[][] transportMappingData()
     {
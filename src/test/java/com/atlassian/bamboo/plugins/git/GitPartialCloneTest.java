@@ -0,0 +1,76 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GitPartialCloneTest extends GitAbstractTest
+{
+    private static final String MASTER_HEAD = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+
+    @Test
+    public void testBloblessCacheIsCheckedOutWithLazilyFetchedBlobs() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = createTempDirectory();
+        File workspace = createTempDirectory();
+        NativeGitOperationHelper helper = createNativeGitOperationHelper(createAccessData(repository, "master"));
+        createPartialClone(repository, cache);
+
+        assertTrue(GitPartialClone.isPartialClone(new File(cache, ".git")));
+        assertTrue(helper.isRevisionInCacheRepository(cache, MASTER_HEAD));
+        assertEquals(helper.extractCommits(cache, null, MASTER_HEAD).getChanges().size(),
+                     helper.extractCommits(repository, null, MASTER_HEAD).getChanges().size());
+
+        assertEquals(helper.checkout(cache, workspace, MASTER_HEAD, null), MASTER_HEAD);
+        verifyContents(workspace, "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip");
+        assertTrue(GitPartialClone.isPartialClone(new File(workspace, ".git")));
+        GitBatchCheckWorker.closeWorkers(cache);
+        GitBatchCheckWorker.closeWorkers(workspace);
+    }
+
+    @Test
+    public void testJGitReplacesPartialCache() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = createTempDirectory();
+        File workspace = createTempDirectory();
+        createPartialClone(repository, cache);
+
+        GitOperationHelper helper = createJGitOperationHelper(createAccessData(repository, "master"));
+        // so that callers fetch it before checking out from it
+        assertFalse(helper.isRevisionInCacheRepository(cache, MASTER_HEAD));
+
+        helper.fetch(cache, false);
+        assertFalse(GitPartialClone.isPartialClone(new File(cache, ".git")));
+        assertTrue(helper.isRevisionInCacheRepository(cache, MASTER_HEAD));
+        assertEquals(helper.checkout(cache, workspace, MASTER_HEAD, null), MASTER_HEAD);
+        verifyContents(workspace, "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip");
+        GitBatchCheckWorker.closeWorkers(cache);
+    }
+
+    @Test
+    public void testFullCacheIsLeftAlone() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = createTempDirectory();
+        File workspace = createTempDirectory();
+
+        NativeGitOperationHelper helper = createNativeGitOperationHelper(createAccessData(repository, "master"));
+        helper.fetch(cache, false);
+        helper.checkout(cache, workspace, MASTER_HEAD, null);
+
+        assertFalse(GitPartialClone.isPartialClone(new File(cache, ".git")));
+        assertFalse(GitPartialClone.isPartialClone(new File(workspace, ".git")));
+        GitBatchCheckWorker.closeWorkers(cache);
+        GitBatchCheckWorker.closeWorkers(workspace);
+    }
+}
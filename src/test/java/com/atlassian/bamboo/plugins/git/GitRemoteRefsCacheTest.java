@@ -0,0 +1,100 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class GitRemoteRefsCacheTest extends GitAbstractTest
+{
+    private static final String MASTER_REVISION = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+
+    @Test
+    public void testRemoteRefsAreSharedBetweenBranches() throws Exception
+    {
+        final CountingLoader loader = new CountingLoader();
+        final long hitsBefore = GitRemoteRefsCache.getHitCount();
+
+        final Map<String, Ref> first = GitRemoteRefsCache.getRefs(createAccessData("ssh://git.example.com/shared.git", "master"), loader);
+        final Map<String, Ref> second = GitRemoteRefsCache.getRefs(createAccessData("ssh://git.example.com/shared.git", "myBranch"), loader);
+
+        assertSame(second, first);
+        assertEquals(loader.loads.get(), 1);
+        assertEquals(GitRemoteRefsCache.getHitCount() - hitsBefore, 1);
+    }
+
+    @Test
+    public void testCredentialsAreSeparated() throws Exception
+    {
+        final CountingLoader loader = new CountingLoader();
+
+        GitRemoteRefsCache.getRefs(createAccessData("ssh://git.example.com/credentials.git", "master", "user1", null, null, null), loader);
+        GitRemoteRefsCache.getRefs(createAccessData("ssh://git.example.com/credentials.git", "master", "user2", null, null, null), loader);
+
+        assertEquals(loader.loads.get(), 2);
+    }
+
+    @Test
+    public void testLocalRepositoriesAreNotCached() throws Exception
+    {
+        final CountingLoader loader = new CountingLoader();
+        final File repository = createTempDirectory();
+
+        GitRemoteRefsCache.getRefs(createAccessData(repository, "master"), loader);
+        GitRemoteRefsCache.getRefs(createAccessData(repository, "master"), loader);
+
+        assertEquals(loader.loads.get(), 2);
+    }
+
+    @Test
+    public void testReloadKeepsSharedListing() throws Exception
+    {
+        final CountingLoader loader = new CountingLoader();
+        final GitRepository.GitRepositoryAccessData accessData = createAccessData("https://git.example.com/reload.git", "deletedBranch");
+
+        GitRemoteRefsCache.getRefs(accessData, loader);
+        final Map<String, Ref> reloaded = GitRemoteRefsCache.reload(accessData, loader);
+        final Map<String, Ref> shared = GitRemoteRefsCache.getRefs(createAccessData("https://git.example.com/reload.git", "master"), loader);
+
+        assertSame(shared, reloaded);
+        assertEquals(loader.loads.get(), 2);
+    }
+
+    @Test
+    public void testExpiredListingsAreEvicted() throws Exception
+    {
+        final CountingLoader loader = new CountingLoader();
+        GitRemoteRefsCache.getRefs(createAccessData("ssh://git.example.com/expired.git", "master"), loader);
+        assertTrue(GitRemoteRefsCache.size() > 0);
+
+        GitRemoteRefsCache.evictExpired(System.currentTimeMillis() + 2 * TimeUnit.SECONDS.toMillis(GitRemoteRefsCache.REFS_CACHE_TTL_SECONDS));
+
+        assertEquals(GitRemoteRefsCache.size(), 0);
+    }
+
+    private static class CountingLoader implements GitRemoteRefsCache.RefsLoader
+    {
+        final AtomicInteger loads = new AtomicInteger();
+
+        @NotNull
+        public Map<String, Ref> load() throws IOException, RepositoryException
+        {
+            loads.incrementAndGet();
+            final Ref master = new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, "refs/heads/master", ObjectId.fromString(MASTER_REVISION));
+            return Collections.singletonMap(master.getName(), master);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.plugins.git.GitCacheMaintenance.PackStatistics;
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class GitSharedObjectStoreTest extends GitAbstractTest
+{
+    private static final String MASTER_HEAD = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+    private static final String MY_BRANCH_HEAD = "4367e71d438f091a5e85304618a8f78f9db6738e";
+
+    @Test
+    public void testCachesShareObjects() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cacheRoot = createTempDirectory();
+        File masterCache = new File(cacheRoot, "master");
+        File branchCache = new File(cacheRoot, "myBranch");
+        File store = new File(cacheRoot, "store");
+
+        GitOperationHelper masterHelper = createJGitOperationHelper(createAccessData(repository, "master"));
+        GitOperationHelper branchHelper = createJGitOperationHelper(createAccessData(repository, "myBranch"));
+        masterHelper.fetch(masterCache, false);
+        GitSharedObjectStore.addObjects(masterCache, store);
+        branchHelper.fetch(branchCache, false);
+        GitSharedObjectStore.addObjects(branchCache, store);
+
+        for (File cache : new File[] {masterCache, branchCache})
+        {
+            PackStatistics cacheStatistics = GitCacheMaintenance.getPackStatistics(new File(cache, ".git"));
+            assertEquals(cacheStatistics.packs, 0);
+            assertEquals(cacheStatistics.looseObjects, 0);
+            assertTrue(FileUtils.readFileToString(new File(cache, ".git/objects/info/alternates")).contains(new File(store, "objects").getAbsolutePath()));
+        }
+        assertEquals(masterHelper.getCurrentRevision(masterCache), MASTER_HEAD);
+        assertEquals(branchHelper.getCurrentRevision(branchCache), MY_BRANCH_HEAD);
+        assertTrue(branchHelper.isRevisionInCacheRepository(branchCache, MASTER_HEAD));
+        assertEquals(branchHelper.extractCommits(branchCache, MASTER_HEAD, MY_BRANCH_HEAD).getChanges().size(),
+                     masterHelper.extractCommits(repository, MASTER_HEAD, MY_BRANCH_HEAD).getChanges().size());
+
+        // fetching again doesn't add the alternate twice
+        branchHelper.fetch(branchCache, false);
+        GitSharedObjectStore.addObjects(branchCache, store);
+        assertEquals(FileUtils.readLines(new File(branchCache, ".git/objects/info/alternates")).size(), 1);
+    }
+
+    @Test
+    public void testStoreIsRepackedWithoutLosingObjects() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cacheRoot = createTempDirectory();
+        File masterCache = new File(cacheRoot, "master");
+        File branchCache = new File(cacheRoot, "myBranch");
+        File store = new File(cacheRoot, "store");
+
+        GitOperationHelper nativeHelper = createNativeGitOperationHelper(createAccessData(repository, "master"));
+        nativeHelper.fetch(masterCache, false);
+        GitSharedObjectStore.addObjects(masterCache, store);
+        createNativeGitOperationHelper(createAccessData(repository, "myBranch")).fetch(branchCache, false);
+        GitSharedObjectStore.addObjects(branchCache, store);
+
+        assertTrue(GitCacheMaintenance.maintainObjectStore(nativeHelper, store));
+
+        assertEquals(GitCacheMaintenance.getPackStatistics(store).packs, 1);
+        assertTrue(nativeHelper.isRevisionInCacheRepository(masterCache, MASTER_HEAD));
+        assertTrue(nativeHelper.isRevisionInCacheRepository(branchCache, MY_BRANCH_HEAD));
+        assertEquals(createJGitOperationHelper(null).getCurrentRevision(branchCache), MY_BRANCH_HEAD);
+        GitBatchCheckWorker.closeWorkers(masterCache);
+        GitBatchCheckWorker.closeWorkers(branchCache);
+    }
+}
@@ -0,0 +1,133 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.ssh.ProxyErrorReceiver;
+import com.atlassian.bamboo.ssh.ProxyRegistrationInfo;
+import com.atlassian.bamboo.ssh.SshProxyService;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+public class GitSshProxyPoolTest extends GitAbstractTest
+{
+    private static final long AFTER_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(GitSshProxyPool.IDLE_TIMEOUT_SECONDS + 1);
+    private static final long LEASE_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    public void testReleasedRegistrationIsReused() throws Exception
+    {
+        final SshProxyService sshProxyService = Mockito.mock(SshProxyService.class);
+        final MockRegistrar registrar = new MockRegistrar();
+        final ProxyErrorReceiver errorReceiver = Mockito.mock(ProxyErrorReceiver.class);
+
+        final ProxyRegistrationInfo first = GitSshProxyPool.register(sshProxyService, "reuse", errorReceiver, LEASE_TIMEOUT, registrar);
+        GitSshProxyPool.unregister(sshProxyService, first, errorReceiver);
+        final ProxyRegistrationInfo second = GitSshProxyPool.register(sshProxyService, "reuse", errorReceiver, LEASE_TIMEOUT, registrar);
+        GitSshProxyPool.unregister(sshProxyService, second, errorReceiver);
+
+        assertSame(second, first);
+        assertEquals(registrar.registrations.size(), 1);
+        Mockito.verify(sshProxyService, Mockito.never()).unregister(Mockito.<ProxyRegistrationInfo>any());
+    }
+
+    @Test
+    public void testRegistrationInUseIsNotEvicted() throws Exception
+    {
+        final SshProxyService sshProxyService = Mockito.mock(SshProxyService.class);
+        final MockRegistrar registrar = new MockRegistrar();
+        final ProxyErrorReceiver errorReceiver = Mockito.mock(ProxyErrorReceiver.class);
+
+        final ProxyRegistrationInfo first = GitSshProxyPool.register(sshProxyService, "inUse", errorReceiver, LEASE_TIMEOUT, registrar);
+        final ProxyRegistrationInfo second = GitSshProxyPool.register(sshProxyService, "inUse", errorReceiver, LEASE_TIMEOUT, registrar);
+        assertSame(second, first);
+
+        GitSshProxyPool.unregister(sshProxyService, first, errorReceiver);
+        GitSshProxyPool.evictIdle(System.currentTimeMillis() + AFTER_IDLE_TIMEOUT);
+        Mockito.verify(sshProxyService, Mockito.never()).unregister(first);
+
+        GitSshProxyPool.unregister(sshProxyService, second, errorReceiver);
+        GitSshProxyPool.evictIdle(System.currentTimeMillis() + AFTER_IDLE_TIMEOUT);
+        Mockito.verify(sshProxyService).unregister(first);
+
+        GitSshProxyPool.unregister(sshProxyService, GitSshProxyPool.register(sshProxyService, "inUse", errorReceiver, LEASE_TIMEOUT, registrar), errorReceiver);
+        assertEquals(registrar.registrations.size(), 2);
+    }
+
+    @Test
+    public void testErrorsAreReportedToCurrentUsers() throws Exception
+    {
+        final SshProxyService sshProxyService = Mockito.mock(SshProxyService.class);
+        final MockRegistrar registrar = new MockRegistrar();
+        final ProxyErrorReceiver firstReceiver = Mockito.mock(ProxyErrorReceiver.class);
+        final ProxyErrorReceiver secondReceiver = Mockito.mock(ProxyErrorReceiver.class);
+
+        GitSshProxyPool.unregister(sshProxyService, GitSshProxyPool.register(sshProxyService, "errors", firstReceiver, LEASE_TIMEOUT, registrar), firstReceiver);
+        final ProxyRegistrationInfo registrationInfo = GitSshProxyPool.register(sshProxyService, "errors", secondReceiver, LEASE_TIMEOUT, registrar);
+
+        final Exception exception = new Exception();
+        registrar.errorReceivers.get(0).reportProxyError("Connection refused", exception);
+
+        Mockito.verify(firstReceiver, Mockito.never()).reportProxyError(Mockito.anyString(), Mockito.<Throwable>any());
+        Mockito.verify(secondReceiver).reportProxyError("Connection refused", exception);
+        GitSshProxyPool.unregister(sshProxyService, registrationInfo, secondReceiver);
+    }
+
+    @Test
+    public void testDifferentKeysGetDifferentRegistrations() throws Exception
+    {
+        final SshProxyService sshProxyService = Mockito.mock(SshProxyService.class);
+        final MockRegistrar registrar = new MockRegistrar();
+        final ProxyErrorReceiver errorReceiver = Mockito.mock(ProxyErrorReceiver.class);
+
+        GitSshProxyPool.unregister(sshProxyService, GitSshProxyPool.register(sshProxyService, "key1", errorReceiver, LEASE_TIMEOUT, registrar), errorReceiver);
+        GitSshProxyPool.unregister(sshProxyService, GitSshProxyPool.register(sshProxyService, "key2", errorReceiver, LEASE_TIMEOUT, registrar), errorReceiver);
+
+        assertEquals(registrar.registrations.size(), 2);
+    }
+
+    @Test
+    public void testLeakedRegistrationIsReleasedAfterLeaseTimeout() throws Exception
+    {
+        final SshProxyService sshProxyService = Mockito.mock(SshProxyService.class);
+        final MockRegistrar registrar = new MockRegistrar();
+        final ProxyErrorReceiver leakingReceiver = Mockito.mock(ProxyErrorReceiver.class);
+        final ProxyErrorReceiver errorReceiver = Mockito.mock(ProxyErrorReceiver.class);
+
+        final ProxyRegistrationInfo leaked = GitSshProxyPool.register(sshProxyService, "leaked", leakingReceiver, LEASE_TIMEOUT, registrar);
+        GitSshProxyPool.unregister(sshProxyService, GitSshProxyPool.register(sshProxyService, "leaked", errorReceiver, LEASE_TIMEOUT, registrar), errorReceiver);
+
+        GitSshProxyPool.evictIdle(System.currentTimeMillis() + AFTER_IDLE_TIMEOUT);
+        Mockito.verify(sshProxyService, Mockito.never()).unregister(leaked);
+
+        GitSshProxyPool.evictIdle(System.currentTimeMillis() + LEASE_TIMEOUT + AFTER_IDLE_TIMEOUT);
+        Mockito.verify(sshProxyService).unregister(leaked);
+
+        registrar.errorReceivers.get(0).reportProxyError("Connection refused", new Exception());
+        Mockito.verify(leakingReceiver, Mockito.never()).reportProxyError(Mockito.anyString(), Mockito.<Throwable>any());
+
+        // giving back the expired lease late must not unregister the proxy once more
+        GitSshProxyPool.unregister(sshProxyService, leaked, leakingReceiver);
+        Mockito.verify(sshProxyService).unregister(leaked);
+    }
+
+    private static class MockRegistrar implements GitSshProxyPool.Registrar
+    {
+        final List<ProxyRegistrationInfo> registrations = new ArrayList<ProxyRegistrationInfo>();
+        final List<ProxyErrorReceiver> errorReceivers = new ArrayList<ProxyErrorReceiver>();
+
+        @NotNull
+        public ProxyRegistrationInfo register(@NotNull final ProxyErrorReceiver errorReceiver)
+        {
+            final ProxyRegistrationInfo registrationInfo = Mockito.mock(ProxyRegistrationInfo.class);
+            registrations.add(registrationInfo);
+            errorReceivers.add(errorReceiver);
+            return registrationInfo;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.jcraft.jsch.Session;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class GitSshSessionPoolTest extends GitAbstractTest
+{
+    @Test
+    public void testReleasedSessionIsReused() throws Exception
+    {
+        final MockConnector connector = new MockConnector();
+        final long reusesBefore = GitSshSessionPool.getReuseCount();
+
+        GitSshSessionPool.getSession("reuse", connector).disconnect();
+        GitSshSessionPool.getSession("reuse", connector).disconnect();
+
+        assertEquals(connector.connections.size(), 1);
+        assertEquals(GitSshSessionPool.getReuseCount() - reusesBefore, 1);
+        Mockito.verify(connector.connections.get(0).remoteSession, Mockito.never()).disconnect();
+    }
+
+    @Test
+    public void testConcurrentTransportsShareSessionUpToChannelLimit() throws Exception
+    {
+        final MockConnector connector = new MockConnector();
+        final List<RemoteSession> leases = new ArrayList<RemoteSession>();
+        for (int i = 0; i <= GitSshSessionPool.CHANNELS_PER_SESSION; i++)
+        {
+            leases.add(GitSshSessionPool.getSession("channels", connector));
+        }
+
+        assertEquals(connector.connections.size(), 2);
+
+        leases.get(0).exec("git-upload-pack 'repo.git'", 0);
+        Mockito.verify(connector.connections.get(0).remoteSession).exec("git-upload-pack 'repo.git'", 0);
+        for (RemoteSession lease : leases)
+        {
+            lease.disconnect();
+        }
+    }
+
+    @Test
+    public void testDeadSessionIsReplaced() throws Exception
+    {
+        final MockConnector connector = new MockConnector();
+
+        GitSshSessionPool.getSession("dead", connector).disconnect();
+        Mockito.when(connector.connections.get(0).session.isConnected()).thenReturn(false);
+        GitSshSessionPool.getSession("dead", connector).disconnect();
+
+        assertEquals(connector.connections.size(), 2);
+        Mockito.verify(connector.connections.get(0).remoteSession).disconnect();
+    }
+
+    @Test
+    public void testIdleSessionIsEvicted() throws Exception
+    {
+        final MockConnector connector = new MockConnector();
+
+        final RemoteSession lease = GitSshSessionPool.getSession("idle", connector);
+        GitSshSessionPool.evictIdle(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(GitSshSessionPool.IDLE_TIMEOUT_SECONDS + 1));
+        Mockito.verify(connector.connections.get(0).remoteSession, Mockito.never()).disconnect();
+
+        lease.disconnect();
+        GitSshSessionPool.evictIdle(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(GitSshSessionPool.IDLE_TIMEOUT_SECONDS + 1));
+        Mockito.verify(connector.connections.get(0).remoteSession).disconnect();
+
+        GitSshSessionPool.getSession("idle", connector).disconnect();
+        assertEquals(connector.connections.size(), 2);
+    }
+
+    @Test
+    public void testCredentialsArePartOfPoolKey() throws Exception
+    {
+        final URIish uri = new URIish("ssh://git@git.example.com/repo.git");
+
+        assertEquals(new GitSshSessionFactory("key", "passphrase", null).getPoolKey(uri),
+                     new GitSshSessionFactory("key", "passphrase", null).getPoolKey(uri));
+        assertFalse(new GitSshSessionFactory("key", "passphrase", null).getPoolKey(uri)
+                .equals(new GitSshSessionFactory("otherKey", "passphrase", null).getPoolKey(uri)));
+        assertFalse(new GitSshSessionFactory(null, null, "password1").getPoolKey(uri)
+                .equals(new GitSshSessionFactory(null, null, "password2").getPoolKey(uri)));
+        assertFalse(new GitSshSessionFactory(null, null, null).getPoolKey(uri)
+                .equals(new GitSshSessionFactory(null, null, null).getPoolKey(new URIish("ssh://git@git.example.com:2222/repo.git"))));
+    }
+
+    private static class MockConnector implements GitSshSessionPool.Connector
+    {
+        final List<GitSshSessionPool.Connection> connections = new ArrayList<GitSshSessionPool.Connection>();
+
+        @NotNull
+        public GitSshSessionPool.Connection connect()
+        {
+            final Session session = Mockito.mock(Session.class);
+            Mockito.when(session.isConnected()).thenReturn(true);
+            final GitSshSessionPool.Connection connection = new GitSshSessionPool.Connection(Mockito.mock(RemoteSession.class), session);
+            connections.add(connection);
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class GitTreeDifferTest extends GitAbstractTest
+{
+    @Test
+    public void testParallelDiffMatchesSequentialDiff() throws Exception
+    {
+        File tmp = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", tmp);
+
+        FileRepository repository = new FileRepository(new File(tmp, Constants.DOT_GIT));
+        RevWalk revWalk = new RevWalk(repository);
+        try
+        {
+            revWalk.markStart(revWalk.parseCommit(repository.resolve(Constants.HEAD)));
+            List<GitTreeDiffer.DiffRequest> requests = new ArrayList<GitTreeDiffer.DiffRequest>();
+            for (RevCommit commit : revWalk)
+            {
+                requests.add(new GitTreeDiffer.DiffRequest(commit.getParentCount() > 0 ? commit.getParent(0).getTree() : null, commit.getTree()));
+            }
+
+            List<List<String>> sequential = GitTreeDiffer.getChangedPaths(repository, requests, 1);
+            List<List<String>> parallel = GitTreeDiffer.getChangedPaths(repository, requests, 4);
+
+            assertEquals(sequential.size(), 150);
+            assertEquals(parallel, sequential);
+        }
+        finally
+        {
+            revWalk.release();
+            repository.close();
+        }
+    }
+}
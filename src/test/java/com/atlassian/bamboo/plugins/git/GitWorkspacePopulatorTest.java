@@ -0,0 +1,97 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GitWorkspacePopulatorTest extends GitAbstractTest
+{
+    private static final String MASTER_HEAD = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+    private static final String MASTER_CONTENTS = "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip";
+
+    @Test
+    public void testWorkspaceIsPopulatedFromKeptCheckout() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = new File(createTempDirectory(), "cache");
+        File workspace = createTempDirectory();
+
+        GitOperationHelper helper = createNativeGitOperationHelper(createAccessData(repository, "master"));
+        helper.fetch(cache, false);
+
+        assertTrue(GitWorkspacePopulator.populate(helper, cache, workspace, MASTER_HEAD));
+        assertTrue(new File(cache.getPath() + GitWorkspacePopulator.CHECKOUTS_SUFFIX, MASTER_HEAD).isDirectory());
+        assertEquals(helper.checkout(cache, workspace, MASTER_HEAD, null), MASTER_HEAD);
+        verifyContents(workspace, MASTER_CONTENTS);
+
+        // not a clean workspace any more
+        assertFalse(GitWorkspacePopulator.populate(helper, cache, workspace, MASTER_HEAD));
+        GitBatchCheckWorker.closeWorkers(workspace);
+    }
+
+    @Test
+    public void testEditingPopulatedFileLeavesKeptCheckoutUnchanged() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = new File(createTempDirectory(), "cache");
+        File firstWorkspace = createTempDirectory();
+        File secondWorkspace = createTempDirectory();
+
+        GitOperationHelper helper = createNativeGitOperationHelper(createAccessData(repository, "master"));
+        helper.fetch(cache, false);
+
+        assertTrue(GitWorkspacePopulator.populate(helper, cache, firstWorkspace, MASTER_HEAD));
+        helper.checkout(cache, firstWorkspace, MASTER_HEAD, null);
+        File keptFile = new File(new File(cache.getPath() + GitWorkspacePopulator.CHECKOUTS_SUFFIX, MASTER_HEAD), "b.txt");
+        String keptContent = FileUtils.readFileToString(keptFile);
+        // written in place, not through a rename
+        FileUtils.writeStringToFile(new File(firstWorkspace, "b.txt"), "modified by the build");
+        assertEquals(FileUtils.readFileToString(keptFile), keptContent);
+
+        assertTrue(GitWorkspacePopulator.populate(helper, cache, secondWorkspace, MASTER_HEAD));
+        helper.checkout(cache, secondWorkspace, MASTER_HEAD, null);
+        verifyContents(secondWorkspace, MASTER_CONTENTS);
+        GitBatchCheckWorker.closeWorkers(firstWorkspace);
+        GitBatchCheckWorker.closeWorkers(secondWorkspace);
+    }
+
+    @Test
+    public void testPartialCacheIsNotUsedToPopulate() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = new File(createTempDirectory(), "cache");
+        File workspace = createTempDirectory();
+        createPartialClone(repository, cache);
+
+        GitOperationHelper helper = createNativeGitOperationHelper(createAccessData(repository, "master"));
+        assertFalse(GitWorkspacePopulator.populate(helper, cache, workspace, MASTER_HEAD));
+        assertEquals(workspace.list().length, 0);
+        assertFalse(new File(cache.getPath() + GitWorkspacePopulator.CHECKOUTS_SUFFIX).exists());
+        GitBatchCheckWorker.closeWorkers(cache);
+    }
+
+    @Test
+    public void testWorkspaceIsPopulatedFromJGitCheckout() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = new File(createTempDirectory(), "cache");
+        File workspace = createTempDirectory();
+
+        GitOperationHelper helper = createJGitOperationHelper(createAccessData(repository, "master"));
+        helper.fetch(cache, false);
+
+        assertTrue(GitWorkspacePopulator.populate(helper, cache, workspace, MASTER_HEAD));
+        assertEquals(helper.checkout(cache, workspace, MASTER_HEAD, null), MASTER_HEAD);
+        verifyContents(workspace, MASTER_CONTENTS);
+    }
+}
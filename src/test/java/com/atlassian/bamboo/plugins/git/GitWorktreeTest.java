@@ -0,0 +1,59 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.eclipse.jgit.lib.Constants;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class GitWorktreeTest extends GitAbstractTest
+{
+    private static final String MASTER_HEAD = "a26ff19c3c63e19d6a57a396c764b140f48c530a";
+    private static final String MY_BRANCH_HEAD = "4367e71d438f091a5e85304618a8f78f9db6738e";
+
+    @Test
+    public void testWorkspacesAreWorktreesOfCache() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = createTempDirectory();
+        File workspace = createTempDirectory();
+        File otherWorkspace = createTempDirectory();
+
+        NativeGitOperationHelper helper = createNativeGitOperationHelper(createAccessData(repository, "master"));
+        helper.fetch(cache, false);
+        createNativeGitOperationHelper(createAccessData(repository, "myBranch")).fetch(cache, false);
+
+        assertEquals(helper.checkoutWorktree(cache, workspace, MASTER_HEAD), MASTER_HEAD);
+        assertTrue(GitWorktree.isWorktree(workspace));
+        assertEquals(GitWorktree.getRepositoryDirectory(workspace), new File(cache, Constants.DOT_GIT).getCanonicalFile());
+        assertFalse(new File(workspace, Constants.DOT_GIT + "/objects").exists());
+        verifyContents(workspace, "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip");
+
+        // another workspace can be at the same revision at the same time
+        helper.checkoutWorktree(cache, otherWorkspace, MASTER_HEAD);
+        verifyContents(otherWorkspace, "basic-repo-contents-a26ff19c3c63e19d6a57a396c764b140f48c530a.zip");
+
+        assertEquals(helper.checkoutWorktree(cache, workspace, MY_BRANCH_HEAD), MY_BRANCH_HEAD);
+        assertEquals(helper.getCurrentRevision(workspace), MY_BRANCH_HEAD);
+        verifyContents(workspace, "basic-repo-contents-4367e71d438f091a5e85304618a8f78f9db6738e.zip");
+
+        GitBatchCheckWorker.closeWorkers(cache);
+        GitBatchCheckWorker.closeWorkers(workspace);
+        GitBatchCheckWorker.closeWorkers(otherWorkspace);
+    }
+
+    @Test
+    public void testStandaloneWorkspaceIsNotAWorktree() throws Exception
+    {
+        File workspace = createTempDirectory();
+        new File(workspace, Constants.DOT_GIT).mkdir();
+
+        assertFalse(GitWorktree.isWorktree(workspace));
+        assertEquals(GitWorktree.getRepositoryDirectory(workspace), new File(workspace, Constants.DOT_GIT));
+    }
+}
@@ -14,6 +14,8 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -23,6 +25,7 @@ import java.net.UnknownHostException;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
 
 public class TransportAllTrustingHttpsTest extends GitAbstractTest
 {
@@ -125,4 +128,31 @@ public class TransportAllTrustingHttpsTest extends GitAbstractTest
             }
         }
     }
+
+    @Test
+    public void testSslContextIsSharedAndHandshakesAreCounted() throws Exception
+    {
+        SSLSocketFactory sslSocketFactory = TransportAllTrustingHttps.getSslSocketFactory();
+        assertSame(sslSocketFactory, TransportAllTrustingHttps.getSslSocketFactory());
+
+        long handshakesBefore = TransportAllTrustingHttps.getHandshakeCount() + TransportAllTrustingHttps.getResumedSessionCount();
+        SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket("localhost", port);
+        try
+        {
+            socket.startHandshake();
+        }
+        finally
+        {
+            socket.close();
+        }
+
+        // handshake listeners are notified asynchronously
+        long deadline = System.currentTimeMillis() + 5000;
+        while (TransportAllTrustingHttps.getHandshakeCount() + TransportAllTrustingHttps.getResumedSessionCount() == handshakesBefore
+               && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("Handshake should be counted", handshakesBefore + 1, TransportAllTrustingHttps.getHandshakeCount() + TransportAllTrustingHttps.getResumedSessionCount());
+    }
 }